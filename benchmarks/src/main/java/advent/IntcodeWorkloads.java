@@ -0,0 +1,198 @@
+package advent;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Drives each day's Intcode program through a complete run, the way its solution does but with
+ * as little non-Intcode work as possible, so that benchmarks mostly measure {@link ShipComputer}.
+ *
+ * <p>Every computer a workload creates (including forks) goes through {@link #track}, which
+ * enables the compiling tier if requested. When counting, it also attaches a profiler so that the
+ * total number of instructions executed can be read back afterwards.
+ */
+final class IntcodeWorkloads {
+  static final String[] DAYS = {"02", "05", "07", "09", "11", "13", "15"};
+
+  private final boolean compiled;
+  private final List<ShipProfiler> profilers; // Only present when counting instructions
+
+  private IntcodeWorkloads(boolean compiled, boolean counting) {
+    this.compiled = compiled;
+    this.profilers = counting ? new ArrayList<>() : null;
+  }
+
+  static IntcodeWorkloads forTier(String tier) {
+    switch (tier) {
+      case "interpreter":
+        return new IntcodeWorkloads(false, false);
+      case "compiler":
+        return new IntcodeWorkloads(true, false);
+      default:
+        throw new IllegalArgumentException("Unknown tier: " + tier);
+    }
+  }
+
+  /** Loads a day's program from the input directory (override with {@code -Dadvent.input}). */
+  static ProgramImage load(String day) throws IOException {
+    return ProgramImage.load(System.getProperty("advent.input", "../input") + "/" + day + ".txt");
+  }
+
+  /** Returns the number of Intcode instructions one run of the given day's workload executes. */
+  static long countInstructions(String day, ProgramImage program) {
+    IntcodeWorkloads counter = new IntcodeWorkloads(false, true);
+    counter.run(day, program);
+    return counter.profilers.stream().mapToLong(ShipProfiler::getInstructionsRetired).sum();
+  }
+
+  /** Runs the given day's workload, returning its answer (mainly so it can't be optimized out). */
+  long run(String day, ProgramImage program) {
+    switch (day) {
+      case "02":
+        return gravityAssist(program);
+      case "05":
+        return diagnostics(program, 5);
+      case "07":
+        return feedbackLoop(program, new long[] {9, 8, 7, 6, 5});
+      case "09":
+        return diagnostics(program, 2);
+      case "11":
+        return paintHull(program);
+      case "13":
+        return playArcade(program);
+      case "15":
+        return exploreMaze(program);
+      default:
+        throw new IllegalArgumentException("No workload for day " + day);
+    }
+  }
+
+  private ShipComputer track(ShipComputer computer) {
+    if (compiled) {
+      computer.enableCompiler();
+    }
+    if (profilers != null) {
+      profilers.add(computer.enableProfiler());
+    }
+    return computer;
+  }
+
+  private long gravityAssist(ProgramImage program) {
+    ShipComputer computer = track(new ShipComputer(program));
+    computer.writeMemory(1, 12);
+    computer.writeMemory(2, 2);
+    computer.execute();
+    return computer.readMemory(0);
+  }
+
+  /** Days 5 and 9: a single input, then a long computation with a little output. */
+  private long diagnostics(ProgramImage program, long input) {
+    ShipComputer computer = track(new ShipComputer(program));
+    computer.addInput(input);
+    computer.execute();
+    LongChannel output = computer.getOutput();
+    return output.get(output.size() - 1);
+  }
+
+  /** Day 7: amplifiers in a feedback loop, stepped round-robin on the calling thread. */
+  private long feedbackLoop(ProgramImage program, long[] phases) {
+    ShipComputer[] amplifiers = new ShipComputer[phases.length];
+    for (int i = 0; i < phases.length; i++) {
+      amplifiers[i] = track(new ShipComputer(program));
+      amplifiers[i].addInput(phases[i]);
+    }
+
+    long signal = 0;
+    boolean running = true;
+    while (running) {
+      for (ShipComputer amplifier : amplifiers) {
+        amplifier.addInput(signal);
+        running = amplifier.execute();
+        while (amplifier.hasOutput()) {
+          signal = amplifier.removeOutput();
+        }
+      }
+    }
+    return signal;
+  }
+
+  /** Day 11: callback I/O against a map of painted panels. */
+  private long paintHull(ProgramImage program) {
+    Map<Long, Long> panels = new HashMap<>();
+    long[] robot = new long[4]; // x, y, direction (0-3, clockwise from north), next output kind
+    track(new ShipComputer(program))
+        .execute(
+            () -> panels.getOrDefault(pack(robot[0], robot[1]), 0L),
+            value -> {
+              if (robot[3] == 0) {
+                panels.put(pack(robot[0], robot[1]), value);
+              } else {
+                robot[2] = (robot[2] + (value == 0 ? 3 : 1)) & 3;
+                robot[0] += robot[2] == 1 ? 1 : robot[2] == 3 ? -1 : 0;
+                robot[1] += robot[2] == 2 ? 1 : robot[2] == 0 ? -1 : 0;
+              }
+              robot[3] ^= 1;
+            });
+    return panels.size();
+  }
+
+  /** Day 13: a full game with free play, the paddle chasing the ball. I/O dominates. */
+  private long playArcade(ProgramImage program) {
+    ShipComputer computer = track(new ShipComputer(program));
+    computer.writeMemory(0, 2);
+
+    long[] state = new long[3]; // Ball x, paddle x, score
+    long[] triple = new long[3];
+    int[] tripleSize = new int[1];
+    computer.execute(
+        () -> Long.signum(state[0] - state[1]),
+        value -> {
+          triple[tripleSize[0]++] = value;
+          if (tripleSize[0] == 3) {
+            tripleSize[0] = 0;
+            if (triple[0] == -1 && triple[1] == 0) {
+              state[2] = triple[2];
+            } else if (triple[2] == 4) {
+              state[0] = triple[0];
+            } else if (triple[2] == 3) {
+              state[1] = triple[0];
+            }
+          }
+        });
+    return state[2];
+  }
+
+  /** Day 15: depth-first exploration of the maze, forking the droid at every branch. */
+  private long exploreMaze(ProgramImage program) {
+    Set<Long> visited = new HashSet<>();
+    visited.add(pack(0, 0));
+    explore(track(new ShipComputer(program)), 0, 0, visited);
+    return visited.size();
+  }
+
+  private void explore(ShipComputer droid, long x, long y, Set<Long> visited) {
+    // Direction codes 1-4 are north, south, west and east
+    for (int direction = 1; direction <= 4; direction++) {
+      final long nextX = x + (direction == 3 ? -1 : direction == 4 ? 1 : 0);
+      final long nextY = y + (direction == 1 ? -1 : direction == 2 ? 1 : 0);
+      if (!visited.add(pack(nextX, nextY))) {
+        continue;
+      }
+      ShipComputer branch = track(droid.fork());
+      branch.addInput(direction);
+      branch.execute();
+      if (branch.removeOutput() != 0) {
+        explore(branch, nextX, nextY, visited);
+      }
+    }
+  }
+
+  private static long pack(long x, long y) {
+    return (x << 32) ^ (y & 0xFFFF_FFFFL);
+  }
+}
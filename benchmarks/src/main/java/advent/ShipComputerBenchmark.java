@@ -0,0 +1,155 @@
+package advent;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Runs every day's Intcode program on each execution tier.
+ *
+ * <ul>
+ *   <li>{@link #execute}: steady-state throughput. Besides runs per second, the {@code
+ *       instructions} counter reports Intcode instructions executed per second.
+ *   <li>{@link #coldStart}: a single run in a fresh JVM, including loading the program.
+ *   <li>{@link #arcadeQueued}: Day 13's arcade driven through the input and output queues rather
+ *       than callbacks, one frame per {@code execute()} call. Almost all I/O.
+ *   <li>{@link #relativeModeFork}: Day 9's BOOST program run on forks of one loaded computer, so
+ *       that its relative-mode writes past the program also pay for copy-on-write memory.
+ * </ul>
+ *
+ * Run with {@code -prof gc} to see the allocation rate of each.
+ */
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ShipComputerBenchmark {
+  @State(Scope.Benchmark)
+  public static class Program {
+    @Param({"02", "05", "07", "09", "11", "13", "15"})
+    public String day;
+
+    @Param({"interpreter", "compiler"})
+    public String tier;
+
+    ProgramImage image;
+    IntcodeWorkloads workloads;
+    long instructionsPerRun;
+
+    @Setup(Level.Trial)
+    public void load() throws IOException {
+      image = IntcodeWorkloads.load(day);
+      workloads = IntcodeWorkloads.forTier(tier);
+      instructionsPerRun = IntcodeWorkloads.countInstructions(day, image);
+    }
+  }
+
+  /** Nothing is loaded or run up front, so that the first run really is cold. */
+  @State(Scope.Benchmark)
+  public static class ColdProgram {
+    @Param({"02", "05", "07", "09", "11", "13", "15"})
+    public String day;
+
+    @Param({"interpreter", "compiler"})
+    public String tier;
+  }
+
+  @State(Scope.Benchmark)
+  public static class Tier {
+    @Param({"interpreter", "compiler"})
+    public String tier;
+
+    ProgramImage arcade;
+    ShipComputer boost; // Loaded but never run itself, only forked
+
+    @Setup(Level.Trial)
+    public void load() throws IOException {
+      arcade = IntcodeWorkloads.load("13");
+      boost = new ShipComputer(IntcodeWorkloads.load("09"));
+      if (tier.equals("compiler")) {
+        boost.enableCompiler();
+      }
+    }
+  }
+
+  /** Reported by JMH alongside the primary result, as a rate. */
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  @State(Scope.Thread)
+  public static class Counters {
+    public long instructions;
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.Throughput)
+  @OutputTimeUnit(TimeUnit.SECONDS)
+  public long execute(Program program, Counters counters) {
+    counters.instructions += program.instructionsPerRun;
+    return program.workloads.run(program.day, program.image);
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  @Fork(20)
+  @Warmup(iterations = 0)
+  @Measurement(iterations = 1)
+  public long coldStart(ColdProgram program) throws IOException {
+    return IntcodeWorkloads.forTier(program.tier)
+        .run(program.day, IntcodeWorkloads.load(program.day));
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public long arcadeQueued(Tier tier) {
+    ShipComputer computer = new ShipComputer(tier.arcade);
+    if (tier.tier.equals("compiler")) {
+      computer.enableCompiler();
+    }
+    computer.writeMemory(0, 2);
+
+    long ballX = 0;
+    long paddleX = 0;
+    long score = 0;
+    LongChannel output = computer.getOutput();
+    boolean running;
+    do {
+      running = computer.execute();
+      while (!output.isEmpty()) {
+        final long x = output.remove();
+        final long y = output.remove();
+        final long value = output.remove();
+        if (x == -1 && y == 0) {
+          score = value;
+        } else if (value == 4) {
+          ballX = x;
+        } else if (value == 3) {
+          paddleX = x;
+        }
+      }
+      computer.addInput(Long.signum(ballX - paddleX));
+    } while (running);
+    return score;
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public long relativeModeFork(Tier tier) {
+    ShipComputer computer = tier.boost.fork();
+    computer.addInput(2);
+    computer.execute();
+    return computer.removeOutput();
+  }
+}
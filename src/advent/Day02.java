@@ -1,25 +1,33 @@
 package advent;
 
 import java.io.IOException;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.OptionalLong;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 public class Day02 {
   private static final int TARGET_VALUE = 19690720; // Provided in Day 2, Part 2 problem description
 
   public static void main(String[] args) throws IOException {
-    int[] program = ParseUtility.extractInts(FileUtility.fileToString("input/02.txt"));
+    ProgramImage program = ProgramImage.load("input/02.txt");
 
     // Part one
     FileUtility.printAndOutput(runProgram(program, 12, 2), "output/02a.txt");
 
     // Part two
-    FileUtility.printAndOutput(searchNounVerbSpace(program, TARGET_VALUE), "output/02b.txt");
+    FileUtility.printAndOutput(
+        searchNounVerbSpace(program, TARGET_VALUE, MIN_NOUN_VERB, MAX_NOUN_VERB),
+        "output/02b.txt");
   }
 
-  private static long runProgram(int[] program, int noun, int verb) {
-    program[1] = noun;
-    program[2] = verb;
-
+  private static long runProgram(ProgramImage program, int noun, int verb) {
     ShipComputer computer = new ShipComputer(program);
+    computer.writeMemory(1, noun);
+    computer.writeMemory(2, verb);
     computer.execute();
     return computer.readMemory(0);
   }
@@ -27,19 +35,190 @@ public class Day02 {
   private static final int MIN_NOUN_VERB = 0;
   private static final int MAX_NOUN_VERB = 99;
 
-  private static int searchNounVerbSpace(int[] program, int targetValue) {
-    for (int noun = MIN_NOUN_VERB; noun <= MAX_NOUN_VERB; noun++) {
-      for (int verb = MIN_NOUN_VERB; verb <= MAX_NOUN_VERB; verb++) {
-        if (runProgram(program, noun, verb) == targetValue) {
-          return hash(noun, verb);
+  private static long searchNounVerbSpace(
+      ProgramImage program, int targetValue, int minNounVerb, int maxNounVerb) {
+    OptionalLong solved = solveNounVerb(program, targetValue, minNounVerb, maxNounVerb);
+    if (solved.isPresent()) {
+      return solved.getAsLong();
+    }
+
+    NounVerbSearch search = new NounVerbSearch(program, targetValue, minNounVerb, maxNounVerb);
+    final long start = System.nanoTime();
+    ForkJoinPool.commonPool().invoke(search);
+    final long runs = search.runs.sum();
+    final double seconds = (System.nanoTime() - start) / 1e9;
+    System.err.printf("Searched %d noun/verb pairs (%.0f runs/s)%n", runs, runs / seconds);
+
+    return search.answer();
+  }
+
+  private static final long NOT_FOUND = Long.MAX_VALUE; // Above every position, so any find wins
+  private static final int NOUNS_PER_TASK = 4;
+
+  /**
+   * Brute-force search of a range of nouns, split across a fork-join pool. Each noun runs every verb
+   * at once as a lockstep {@link ShipBatch}. Every task shares the same result, which keeps the
+   * lowest noun and verb found (the answer a serial search would give), and tasks skip any noun
+   * above one that has already been found.
+   */
+  @SuppressWarnings("serial") // Only ever run in the pool, never serialized
+  private static class NounVerbSearch extends RecursiveAction {
+    private final ProgramImage program;
+    private final int targetValue;
+    private final int minVerb;
+    private final int maxVerb;
+    private final int fromNoun;
+    private final int toNoun; // Inclusive
+    private final AtomicLong result; // Position of the lowest pair found, see position()
+    private final LongAdder runs;
+
+    NounVerbSearch(ProgramImage program, int targetValue, int minNounVerb, int maxNounVerb) {
+      this(
+          program,
+          targetValue,
+          minNounVerb,
+          maxNounVerb,
+          minNounVerb,
+          maxNounVerb,
+          new AtomicLong(NOT_FOUND),
+          new LongAdder());
+    }
+
+    private NounVerbSearch(
+        ProgramImage program,
+        int targetValue,
+        int minVerb,
+        int maxVerb,
+        int fromNoun,
+        int toNoun,
+        AtomicLong result,
+        LongAdder runs) {
+      this.program = program;
+      this.targetValue = targetValue;
+      this.minVerb = minVerb;
+      this.maxVerb = maxVerb;
+      this.fromNoun = fromNoun;
+      this.toNoun = toNoun;
+      this.result = result;
+      this.runs = runs;
+    }
+
+    /** Orders pairs by noun, then verb, whatever the ranges (unlike {@link Day02#hash}). */
+    private long position(int noun, int verb) {
+      return noun * verbCount() + ((long) verb - minVerb);
+    }
+
+    private long verbCount() {
+      return (long) maxVerb - minVerb + 1;
+    }
+
+    /** Returns the answer for the lowest pair found. Only valid once the search has finished. */
+    long answer() {
+      final long position = result.get();
+      if (position == NOT_FOUND) {
+        throw new RuntimeException("Target value not found");
+      }
+      final int noun = (int) Math.floorDiv(position, verbCount());
+      return hash(noun, (int) (minVerb + Math.floorMod(position, verbCount())));
+    }
+
+    @Override
+    protected void compute() {
+      if (toNoun - fromNoun >= NOUNS_PER_TASK) {
+        final int middle = fromNoun + (toNoun - fromNoun) / 2;
+        invokeAll(
+            new NounVerbSearch(
+                program, targetValue, minVerb, maxVerb, fromNoun, middle, result, runs),
+            new NounVerbSearch(
+                program, targetValue, minVerb, maxVerb, middle + 1, toNoun, result, runs));
+        return;
+      }
+
+      for (int noun = fromNoun; noun <= toNoun; noun++) {
+        if (result.get() < position(noun, minVerb)) {
+          return; // A lower noun has already been found
         }
+
+        ShipBatch batch = new ShipBatch(program, maxVerb - minVerb + 1);
+        for (int lane = 0; lane < batch.getLaneCount(); lane++) {
+          batch.writeMemory(lane, 1, noun);
+          batch.writeMemory(lane, 2, minVerb + lane);
+        }
+        batch.execute();
+        runs.add(batch.getLaneCount());
+
+        for (int lane = 0; lane < batch.getLaneCount(); lane++) {
+          if (batch.readMemory(lane, 0) == targetValue) {
+            result.accumulateAndGet(position(noun, minVerb + lane), Math::min);
+            return; // Any later noun in this task would be higher
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Runs the program once with the noun and verb left as variables, then solves the resulting
+   * expression for the target value. Returns nothing if the program can't be run symbolically.
+   */
+  private static OptionalLong solveNounVerb(
+      ProgramImage program, int targetValue, int minNounVerb, int maxNounVerb) {
+    SymbolicComputer computer = new SymbolicComputer(program.toLongArray());
+    computer.setVariable(1, "noun");
+    computer.setVariable(2, "verb");
+    if (!computer.run()) {
+      return OptionalLong.empty();
+    }
+    Optional<SymbolicComputer.Polynomial> result = computer.readMemory(0).toPolynomial();
+    if (!result.isPresent()) {
+      return OptionalLong.empty();
+    }
+
+    for (int noun = minNounVerb; noun <= maxNounVerb; noun++) {
+      Optional<long[]> coefficients = result.get().substitute("noun", noun).coefficients("verb");
+      if (!coefficients.isPresent()) {
+        return OptionalLong.empty(); // Some other variable crept in
+      }
+      OptionalInt verb = solveForVerb(coefficients.get(), targetValue, minNounVerb, maxNounVerb);
+      if (verb.isPresent()) {
+        return OptionalLong.of(hash(noun, verb.getAsInt()));
       }
     }
 
     throw new RuntimeException("Target value not found");
   }
 
-  private static int hash(int noun, int verb) {
-    return 100 * noun + verb;
+  /** Solves c0 + c1*verb + c2*verb^2 + ... = targetValue for a verb within range. */
+  private static OptionalInt solveForVerb(
+      long[] coefficients, long targetValue, int minVerb, int maxVerb) {
+    if (coefficients.length <= 2) {
+      final long constant = coefficients[0];
+      final long slope = coefficients.length == 2 ? coefficients[1] : 0;
+      if (slope == 0) {
+        return constant == targetValue ? OptionalInt.of(minVerb) : OptionalInt.empty();
+      }
+      final long difference = targetValue - constant;
+      final long verb = difference / slope;
+      return difference % slope == 0 && verb >= minVerb && verb <= maxVerb
+          ? OptionalInt.of((int) verb)
+          : OptionalInt.empty();
+    }
+
+    // Higher degrees are rare enough that evaluating every candidate is fine
+    for (int verb = minVerb; verb <= maxVerb; verb++) {
+      long value = 0;
+      for (int power = coefficients.length - 1; power >= 0; power--) {
+        value = value * verb + coefficients[power];
+      }
+      if (value == targetValue) {
+        return OptionalInt.of(verb);
+      }
+    }
+    return OptionalInt.empty();
+  }
+
+  /** Combines a noun and verb into the answer the puzzle asks for. */
+  private static long hash(int noun, int verb) {
+    return 100L * noun + verb;
   }
 }
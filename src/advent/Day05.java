@@ -4,7 +4,7 @@ import java.io.IOException;
 
 public class Day05 {
   public static void main(String[] args) throws IOException {
-    int[] program = ParseUtility.extractInts(FileUtility.fileToString("input/05.txt"));
+    ProgramImage program = ProgramImage.load("input/05.txt");
 
     // Part one
     FileUtility.printAndOutput(runWithInput(program, 1), "output/05a.txt");
@@ -13,17 +13,15 @@ public class Day05 {
     FileUtility.printAndOutput(runWithInput(program, 5), "output/05b.txt");
   }
 
-  private static long runWithInput(int[] program, int initialInput) {
-    ShipComputer computer = new ShipComputer(program);
-    computer.addInput(initialInput);
-    computer.execute();
+  private static long runWithInput(ProgramImage program, int initialInput) {
+    long[] outputs = ShipRunCache.shared().run(program, initialInput);
 
-    while (computer.outputSize() > 1) {
-      if (computer.removeOutput() != 0) {
+    for (int i = 0; i < outputs.length - 1; i++) {
+      if (outputs[i] != 0) {
         throw new RuntimeException("Found tests with non-zero output");
       }
     }
 
-    return computer.removeOutput();
+    return outputs[outputs.length - 1];
   }
 }
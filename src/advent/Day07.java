@@ -1,82 +1,203 @@
 package advent;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Map;
-import java.util.function.Function;
-import java.util.stream.Collectors;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 public class Day07 {
   private static final int NUM_AMPLIFIERS = 5;
 
   public static void main(String[] args) throws IOException {
-    int[] program = ParseUtility.extractInts(FileUtility.fileToString("input/07.txt"));
+    ProgramImage program = ProgramImage.load("input/07.txt");
 
     // Part one
     FileUtility.printAndOutput(
-        findMaxThrust(program, new int[] {0, 1, 2, 3, 4}, false), "output/07a.txt");
+        findMaxThrust(program, new int[] {0, 1, 2, 3, 4}, NUM_AMPLIFIERS, false),
+        "output/07a.txt");
 
-    // Part one
+    // Part two
     FileUtility.printAndOutput(
-        findMaxThrust(program, new int[] {5, 6, 7, 8, 9}, true), "output/07b.txt");
+        findMaxThrust(program, new int[] {5, 6, 7, 8, 9}, NUM_AMPLIFIERS, true),
+        "output/07b.txt");
   }
 
-  private static long findMaxThrust(int[] program, int[] phaseOptions, boolean feedbackLoop) {
-    Map<Integer, Boolean> phasesUsed =
-        Arrays.stream(phaseOptions)
-            .boxed()
-            .collect(Collectors.toMap(Function.identity(), i -> false));
-    return findMaxThrust(program, feedbackLoop, new int[NUM_AMPLIFIERS], 0, phasesUsed);
+  /**
+   * Returns the highest thrust over every way of giving {@code amplifiers} amplifiers distinct
+   * phase settings from {@code phaseOptions} (up to 64 of them). The permutations are searched as
+   * a tree split across the common fork-join pool. Without a feedback loop, each amplifier is run
+   * once per phase prefix: every permutation below a prefix starts from the signal it produced.
+   */
+  public static long findMaxThrust(
+      ProgramImage program, int[] phaseOptions, int amplifiers, boolean feedbackLoop) {
+    if (amplifiers < 1 || amplifiers > phaseOptions.length || phaseOptions.length > Long.SIZE) {
+      throw new IllegalArgumentException(
+          "Can't run " + amplifiers + " amplifiers with " + phaseOptions.length + " phases");
+    }
+    if (Arrays.stream(phaseOptions).distinct().count() != phaseOptions.length) {
+      throw new IllegalArgumentException(
+          "Phases must be distinct: " + Arrays.toString(phaseOptions));
+    }
+
+    // Feedback networks run on their own pool, so that searches blocked on them can't starve them
+    ForkJoinPool networkPool = feedbackLoop ? new ForkJoinPool() : null;
+    try {
+      PhaseSearch search =
+          new PhaseSearch(
+              program,
+              phaseOptions,
+              feedbackLoop,
+              networkPool,
+              // Every permutation is run on the same few computers, reset in between
+              feedbackLoop ? new ShipComputerPool(program, 4 * amplifiers) : null,
+              new int[amplifiers],
+              0,
+              0,
+              0);
+      return ForkJoinPool.commonPool().invoke(search);
+    } finally {
+      if (networkPool != null) {
+        networkPool.shutdown();
+      }
+    }
   }
 
-  // Recursively tries every valid phase setting configuration
-  private static long findMaxThrust(
-      int[] program,
-      boolean feedbackLoop,
-      int[] phaseSettings,
-      int index,
-      Map<Integer, Boolean> phasesUsed) {
-    if (index == phaseSettings.length) {
-      return computeThrust(program, phaseSettings, feedbackLoop);
+  private static final int PERMUTATIONS_PER_TASK = 64;
+
+  /**
+   * Search of the permutations which start with a given prefix of phase settings. Subtrees are
+   * forked off until they are small enough to search in one go.
+   */
+  @SuppressWarnings("serial") // Holds pools and programs, which couldn't be serialized anyway
+  private static class PhaseSearch extends RecursiveTask<Long> {
+    private final ProgramImage program;
+    private final int[] phaseOptions;
+    private final boolean feedbackLoop;
+    private final ForkJoinPool networkPool;
+    private final ShipComputerPool computers;
+    private final int[] phaseSettings; // The first depth of these make up the prefix
+    private final int depth;
+    private final long phasesUsed; // Bit i set if phaseOptions[i] is in the prefix
+    private final long signal; // Input to the prefix's last amplifier, which hasn't run yet
+
+    PhaseSearch(
+        ProgramImage program,
+        int[] phaseOptions,
+        boolean feedbackLoop,
+        ForkJoinPool networkPool,
+        ShipComputerPool computers,
+        int[] phaseSettings,
+        int depth,
+        long phasesUsed,
+        long signal) {
+      this.program = program;
+      this.phaseOptions = phaseOptions;
+      this.feedbackLoop = feedbackLoop;
+      this.networkPool = networkPool;
+      this.computers = computers;
+      this.phaseSettings = phaseSettings;
+      this.depth = depth;
+      this.phasesUsed = phasesUsed;
+      this.signal = signal;
     }
 
-    long maxThrust = Integer.MIN_VALUE;
-    for (int phase : phasesUsed.keySet()) {
-      if (!phasesUsed.get(phase)) {
-        phasesUsed.put(phase, true);
-        phaseSettings[index] = phase;
-        long thrust = findMaxThrust(program, feedbackLoop, phaseSettings, index + 1, phasesUsed);
-        if (thrust > maxThrust) {
-          maxThrust = thrust;
+    @Override
+    protected Long compute() {
+      final long output =
+          feedbackLoop || depth == 0 ? signal : runAmplifier(phaseSettings[depth - 1], signal);
+      if (permutationsBelow(depth) <= PERMUTATIONS_PER_TASK) {
+        return search(depth, phasesUsed, output);
+      }
+
+      List<PhaseSearch> subtrees = new ArrayList<>();
+      for (int i = 0; i < phaseOptions.length; i++) {
+        if ((phasesUsed & (1L << i)) == 0) {
+          int[] prefix = phaseSettings.clone();
+          prefix[depth] = phaseOptions[i];
+          subtrees.add(
+              new PhaseSearch(
+                  program,
+                  phaseOptions,
+                  feedbackLoop,
+                  networkPool,
+                  computers,
+                  prefix,
+                  depth + 1,
+                  phasesUsed | (1L << i),
+                  output));
         }
-        phasesUsed.put(phase, false);
       }
+
+      long maxThrust = Long.MIN_VALUE;
+      for (PhaseSearch subtree : invokeAll(subtrees)) {
+        maxThrust = Math.max(maxThrust, subtree.join());
+      }
+      return maxThrust;
     }
 
-    return maxThrust;
-  }
+    /** Searches below a prefix of the given length, whose amplifiers have output {@code signal}. */
+    private long search(int index, long used, long signal) {
+      if (index == phaseSettings.length) {
+        return feedbackLoop ? computeThrust(computers, phaseSettings, networkPool) : signal;
+      }
 
-  private static long computeThrust(int[] program, int[] phaseSettings, boolean feedbackLoop) {
-    ShipComputer[] amplifiers = new ShipComputer[phaseSettings.length];
-    for (int i = 0; i < phaseSettings.length; i++) {
-      amplifiers[i] = new ShipComputer(program);
-      amplifiers[i].addInput(phaseSettings[i]);
+      long maxThrust = Long.MIN_VALUE;
+      for (int i = 0; i < phaseOptions.length; i++) {
+        if ((used & (1L << i)) == 0) {
+          phaseSettings[index] = phaseOptions[i];
+          final long output = feedbackLoop ? signal : runAmplifier(phaseOptions[i], signal);
+          maxThrust = Math.max(maxThrust, search(index + 1, used | (1L << i), output));
+        }
+      }
+      return maxThrust;
     }
 
-    long previousOutput = 0;
-    do {
-      for (ShipComputer amplifier : amplifiers) {
-        amplifier.addInput(previousOutput);
+    // Each amplifier's output only depends on its phase and input signal, so the cache catches
+    // runs repeated across prefixes too (every prefix's first amplifier gets a signal of 0)
+    private long runAmplifier(int phase, long signal) {
+      long[] outputs = ShipRunCache.shared().run(program, phase, signal);
+      return outputs[outputs.length - 1];
+    }
 
-        // Once any program terminates completely, the feedback loop should stop running
-        if (!amplifier.execute()) {
-          feedbackLoop = false;
+    /** Returns the number of ways of completing a prefix of the given length, capped for safety. */
+    private long permutationsBelow(int index) {
+      long permutations = 1;
+      for (int i = index; i < phaseSettings.length; i++) {
+        permutations *= phaseOptions.length - i;
+        if (permutations > PERMUTATIONS_PER_TASK) {
+          break;
         }
+      }
+      return permutations;
+    }
+  }
 
-        previousOutput = amplifier.removeOutput();
+  private static long computeThrust(
+      ShipComputerPool amplifiers, int[] phaseSettings, ForkJoinPool networkPool) {
+    ShipNetwork network = new ShipNetwork();
+    for (int i = 0; i < phaseSettings.length; i++) {
+      ShipComputer amplifier = amplifiers.borrow();
+      amplifier.enableIntTier();
+      network.add(amplifier);
+      network.send(i, phaseSettings[i]);
+      if (i > 0) {
+        network.connect(i - 1, i);
       }
-    } while (feedbackLoop);
+    }
+
+    final int last = phaseSettings.length - 1;
+    network.connect(last, 0);
+    network.send(0, 0);
 
-    return previousOutput;
+    final ShipNetwork.Outcome outcome = network.run(networkPool);
+    for (int i = 0; i < phaseSettings.length; i++) {
+      amplifiers.release(network.getComputer(i));
+    }
+    if (outcome != ShipNetwork.Outcome.HALTED) {
+      throw new RuntimeException("Amplifiers stopped without halting");
+    }
+    return network.getLastOutput(last);
   }
 }
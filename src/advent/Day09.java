@@ -4,7 +4,7 @@ import java.io.IOException;
 
 public class Day09 {
   public static void main(String[] args) throws IOException {
-    long[] program = ParseUtility.extractLongs(FileUtility.fileToString("input/09.txt"));
+    ProgramImage program = ProgramImage.load("input/09.txt");
 
     // Part one
     FileUtility.printAndOutput(runWithInput(program, 1), "output/09a.txt");
@@ -13,15 +13,13 @@ public class Day09 {
     FileUtility.printAndOutput(runWithInput(program, 2), "output/09b.txt");
   }
 
-  private static long runWithInput(long[] program, long initialInput) {
-    ShipComputer computer = new ShipComputer(program);
-    computer.addInput(initialInput);
-    computer.execute();
+  private static long runWithInput(ProgramImage program, long initialInput) {
+    long[] outputs = ShipRunCache.shared().run(program, initialInput);
 
-    if (computer.outputSize() > 1) {
+    if (outputs.length > 1) {
       throw new RuntimeException("Extraneous output from test program");
     }
 
-    return computer.removeOutput();
+    return outputs[0];
   }
 }
@@ -14,7 +14,7 @@ public class Day11 {
   private static final char CHAR_WHITE = '#';
 
   public static void main(String[] args) throws IOException {
-    long[] program = ParseUtility.extractLongs(FileUtility.fileToString("input/11.txt"));
+    long[] program = ProgramImage.load("input/11.txt").toLongArray();
 
     // Part one
     FileUtility.printAndOutput(runRobot(program, new HashMap<>()), "output/11a.txt");
@@ -46,29 +46,40 @@ public class Day11 {
 
   /** Runs the robot program until termination - returns the number of unique panels visited. */
   public static int runRobot(long[] program, Map<Point, Integer> panels) {
+    Robot robot = new Robot(panels);
     ShipComputer computer = new ShipComputer(program);
-    Point position = new Point(0, 0);
-    Direction direction = Direction.NORTH;
-    int uniquePanels = 0;
+    computer.enableIntTier();
+    computer.execute(robot::readCamera, robot::followInstruction);
+    return robot.uniquePanels;
+  }
+
+  private static class Robot {
+    private final Map<Point, Integer> panels;
+    private Point position = new Point(0, 0);
+    private Direction direction = Direction.NORTH;
+    private int uniquePanels = 0;
+    private boolean paintNext = true; // Instructions alternate between a color and a rotation
+
+    Robot(Map<Point, Integer> panels) {
+      this.panels = panels;
+    }
 
-    boolean running = true;
-    while (running) {
+    long readCamera() {
       if (!panels.containsKey(position)) {
         uniquePanels++;
       }
-
-      computer.addInput(panels.getOrDefault(position, BLACK));
-      running = computer.execute();
-      final int newColor = (int) computer.removeOutput();
-      final int rotation = (int) computer.removeOutput();
-
-      // Paint, rotate, move
-      panels.put(position, newColor);
-      direction = (rotation == 0) ? direction.rotateLeft() : direction.rotateRight();
-      position = position.plus(direction.vector);
+      return panels.getOrDefault(position, BLACK);
     }
 
-    return uniquePanels;
+    void followInstruction(long value) {
+      if (paintNext) {
+        panels.put(position, (int) value);
+      } else {
+        direction = (value == 0) ? direction.rotateLeft() : direction.rotateRight();
+        position = position.plus(direction.vector);
+      }
+      paintNext = !paintNext;
+    }
   }
 
   public enum Direction {
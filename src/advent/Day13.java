@@ -1,18 +1,24 @@
 package advent;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
-
-import advent.Day03.Point;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.locks.LockSupport;
 
 public class Day13 {
 
   public static final int QUARTERS = 2;
+  private static final long MAX_INSTRUCTIONS_PER_TICK = 10_000_000;
+  private static final long FRAMES_BEFORE_LOOP_CHECKS = 10_000; // Without the score changing
 
+  /** Pass a frame rate to watch part two being played live in an ANSI terminal. */
   public static void main(String[] args) throws IOException {
-    long[] program = ParseUtility.extractLongs(FileUtility.fileToString("input/13.txt"));
+    long[] program = ProgramImage.load("input/13.txt").toLongArray();
 
     // Part one
     Game initial = new Game(program);
@@ -21,103 +27,247 @@ public class Day13 {
 
     // Part two
     Game game = new Game(program, QUARTERS);
-    // This strategy should prevent the ball from going out of bounds, but it isn't inherently
-    // guaranteed to terminate since the ball coulds get stuck in some kind of loop
-    while (game.tick()) {
-      game.movePaddleTowardsBall();
+    if (args.length > 0) {
+      Renderer renderer =
+          new Renderer(
+              new BufferedWriter(
+                  new OutputStreamWriter(System.out, StandardCharsets.US_ASCII), 1 << 16),
+              Double.parseDouble(args[0]));
+      game.play(renderer);
+      renderer.finish();
+    } else {
+      game.play(null);
     }
     FileUtility.printAndOutput(game.getScore(), "output/13b.txt");
+    System.err.printf(
+        "Played %d frames (%.0f frames/s, %d instructions)%n",
+        game.getFrames(), game.getFramesPerSecond(), game.getInstructions());
   }
 
-  private static String gridToString(Map<Point, Tile> grid) {
-    if (grid.isEmpty()) {
-      return "";
-    }
-
-    int minX = grid.keySet().stream().mapToInt(Point::getX).min().getAsInt();
-    int maxX = grid.keySet().stream().mapToInt(Point::getX).max().getAsInt();
-    int minY = grid.keySet().stream().mapToInt(Point::getY).min().getAsInt();
-    int maxY = grid.keySet().stream().mapToInt(Point::getY).max().getAsInt();
-
-    StringBuilder builder = new StringBuilder();
-    for (int y = minY; y <= maxY; y++) {
-      for (int x = minX; x <= maxX; x++) {
-        builder.append(grid.containsKey(new Point(x, y)) ? grid.get(new Point(x, y)).icon : '.');
-      }
-      builder.append('\n');
-    }
-    return builder.toString();
-  }
-
+  /**
+   * Headless arcade cabinet. Nothing is drawn: the screen is a dense array of tile ids, sized from
+   * the first frame, and the ball, paddle, score and block count are tracked as the program draws
+   * them. The program runs on the {@link ShipComputer#enableIntTier() int tier}, and only switches
+   * to loop detection if the score stops changing for a long time.
+   */
   private static class Game {
 
+    private static final int EMPTY = 0;
+    private static final int BLOCK = 2;
+    private static final int PADDLE = 3;
+    private static final int BALL = 4;
+
     private final ShipComputer computer;
-    private final Map<Point, Tile> grid = new HashMap<>();
+    private ShipLoopDetector loopDetector; // Only enabled once the game seems to be stalling
+    private final Set<Long> statesSeen = new HashSet<>(); // Fingerprints at each tick
+    private final long[] triple = new long[3]; // Output is buffered until a full triple arrives
+    private int tripleSize = 0;
+
+    private LongChannel firstFrame = new LongChannel(); // Tiles drawn before the screen is sized
+    private byte[] screen;
+    private boolean[] changed; // Cells drawn since the last takeChanges()
+    private int[] changes; // Indices of the changed cells
+    private int changeCount = 0;
+    private int width;
+    private int height;
+
     private int score = 0;
     private int blockCount = 0;
-    private Point ball;
-    private Point paddle;
+    private int ballX = -1;
+    private int ballY = -1;
+    private int previousBallX; // Where the ball was at the start of the last tick
+    private int previousBallY;
+    private int paddleX = -1;
+    private int paddleY = -1;
+
+    private long frames = 0;
+    private long lastScoreFrame = 0;
+    private long instructions = 0;
+    private long nanos = 0; // Spent running the program
 
     public Game(long[] rom, long quarters) {
       rom = Arrays.copyOf(rom, rom.length);
       rom[0] = quarters;
       computer = new ShipComputer(rom);
+      computer.setOutputSink(this::receive);
+      computer.enableIntTier();
     }
 
     public Game(long[] rom) {
       this(rom, rom[0]);
     }
 
+    /**
+     * Plays until the game ends, steering the paddle to wherever the ball is coming down. Every
+     * frame is rendered if a renderer is given. Throws if the game ends with blocks left, since the
+     * score is only the answer once they are all gone.
+     */
+    public void play(Renderer renderer) throws IOException {
+      // The steering is a function of what's on screen, but isn't inherently guaranteed to
+      // terminate since the ball could get stuck in some kind of loop. tick() gives up if so.
+      boolean running = true;
+      while (running) {
+        running = tick();
+        if (renderer != null) {
+          renderer.render(this);
+        }
+        if (running) {
+          steer();
+        }
+      }
+      if (blockCount > 0) {
+        throw new RuntimeException("Game over with " + blockCount + " blocks left");
+      }
+    }
+
     /**
      * Returns true if awaiting input. Returns false if all blocks are destroyed, the ball is out of
      * bounds, or execution has halted.
+     *
+     * <p>The paddle is steered purely by what's on screen, so if the game ever comes back to an
+     * earlier state the ball is stuck in a loop for good, and an exception is thrown. States are
+     * only compared once the score has been stuck for a while, which is when a loop is possible.
      */
     public boolean tick() {
-      boolean awaitingInput = computer.execute();
+      previousBallX = ballX;
+      previousBallY = ballY;
+
+      final long start = System.nanoTime();
+      final ShipComputer.Outcome outcome = computer.execute(MAX_INSTRUCTIONS_PER_TICK);
+      nanos += System.nanoTime() - start;
+      instructions += MAX_INSTRUCTIONS_PER_TICK - computer.budget;
+      frames++;
+      if (screen == null) {
+        sizeScreen();
+      }
 
-      while (computer.hasOutput()) {
-        Point point = new Point((int) computer.removeOutput(), (int) computer.removeOutput());
+      switch (outcome) {
+        case HALTED:
+          return false;
+        case AWAITING_INPUT:
+          if (loopDetector == null && frames - lastScoreFrame > FRAMES_BEFORE_LOOP_CHECKS) {
+            loopDetector = computer.enableLoopDetector();
+          }
+          if (loopDetector != null && !statesSeen.add(loopDetector.fingerprint(computer))) {
+            throw new RuntimeException("Ball is stuck in a loop");
+          }
+          return blockCount > 0 && ballY < paddleY;
+        default:
+          throw new RuntimeException("Game stopped responding (" + outcome + ")");
+      }
+    }
 
-        if (point.x == -1 && point.y == 0) {
-          score = (int) computer.removeOutput();
-        } else {
-          Tile newTile = Tile.parseTile((int) computer.removeOutput());
-          Tile oldTile = grid.getOrDefault(point, null);
+    private void receive(long value) {
+      triple[tripleSize++] = value;
+      if (tripleSize < triple.length) {
+        return;
+      }
+      tripleSize = 0;
+
+      if (triple[0] == -1 && triple[1] == 0) {
+        score = (int) triple[2];
+        lastScoreFrame = frames;
+      } else if (screen == null) {
+        firstFrame.add(triple[0]);
+        firstFrame.add(triple[1]);
+        firstFrame.add(triple[2]);
+      } else {
+        draw(triple[0], triple[1], triple[2]);
+      }
+    }
 
-          if (oldTile == Tile.BLOCK && newTile != Tile.BLOCK) {
-            blockCount--;
-          }
+    /** Sizes the screen to fit everything drawn in the first frame, then draws it. */
+    private void sizeScreen() {
+      for (int i = 0; i < firstFrame.size(); i += 3) {
+        width = (int) Math.max(width, firstFrame.get(i) + 1);
+        height = (int) Math.max(height, firstFrame.get(i + 1) + 1);
+      }
+      screen = new byte[width * height];
+      changed = new boolean[screen.length];
+      changes = new int[screen.length];
+      for (int i = 0; i < firstFrame.size(); i += 3) {
+        draw(firstFrame.get(i), firstFrame.get(i + 1), firstFrame.get(i + 2));
+      }
+      firstFrame = null;
+    }
 
-          switch (newTile) {
-            case BALL:
-              ball = point;
-              break;
-            case PADDLE:
-              paddle = point;
-              break;
-            case BLOCK:
-              if (oldTile != Tile.BLOCK) {
-                blockCount++;
-              }
-              break;
-            default:
-          }
+    private void draw(long x, long y, long tile) {
+      if (x < 0 || x >= width || y < 0 || y >= height) {
+        throw new RuntimeException("Tile drawn off screen: " + x + "," + y);
+      }
+      if (tile < EMPTY || tile > BALL) {
+        throw new RuntimeException("Unexpected tile value: " + tile);
+      }
 
-          grid.put(point, newTile);
-        }
+      final int index = (int) y * width + (int) x;
+      if (screen[index] == BLOCK) {
+        blockCount--;
+      }
+      switch ((int) tile) {
+        case BALL:
+          ballX = (int) x;
+          ballY = (int) y;
+          break;
+        case PADDLE:
+          paddleX = (int) x;
+          paddleY = (int) y;
+          break;
+        case BLOCK:
+          blockCount++;
+          break;
+        default:
+      }
+      screen[index] = (byte) tile;
+      if (!changed[index]) {
+        changed[index] = true;
+        changes[changeCount++] = index;
+      }
+    }
+
+    /**
+     * Copies the indices of every cell drawn since the last call into {@code buffer}, which must
+     * be as large as the screen, and returns how many there were. A cell may have been drawn with
+     * the tile it already had.
+     */
+    int takeChanges(int[] buffer) {
+      for (int i = 0; i < changeCount; i++) {
+        buffer[i] = changes[i];
+        changed[changes[i]] = false;
       }
+      final int count = changeCount;
+      changeCount = 0;
+      return count;
+    }
 
-      return awaitingInput && blockCount > 0 && ball.y < paddle.y;
+    /**
+     * Moves the paddle one step towards the ball. Until the paddle has caught up with the ball it
+     * heads for the column where the ball will reach the paddle's row instead. Once under the ball,
+     * it keeps up with it by following, so that no deflection can leave it behind.
+     */
+    public void steer() {
+      final int target = Math.abs(ballX - paddleX) <= 1 ? ballX : predictLandingColumn();
+      computer.addInput(Integer.signum(target - paddleX));
     }
 
-    public void movePaddleTowardsBall() {
-      if (ball.x < paddle.x) {
-        computer.addInput(-1); // LEFT
-      } else if (ball.x == paddle.x) {
-        computer.addInput(0); // NEUTRAL
-      } else { // if (ball.x > paddle.x)
-        computer.addInput(1); // RIGHT
+    /**
+     * Extrapolates the ball's last move, bouncing it off the side walls, to the row just above the
+     * paddle. Blocks in the way can still deflect it, but the prediction is redone every tick and
+     * gets more accurate the closer the ball is. While the ball is rising, the paddle just follows.
+     */
+    private int predictLandingColumn() {
+      final int dx = ballX - previousBallX;
+      final int dy = ballY - previousBallY;
+      if (dy <= 0 || Math.abs(dx) != 1) {
+        return ballX;
       }
+
+      // The walls take up the first and last columns, so the ball bounces between the others
+      final int span = width - 3;
+      if (span <= 0) {
+        return ballX;
+      }
+      final int x = Math.floorMod(ballX - 1 + dx * (paddleY - 1 - ballY), 2 * span);
+      return 1 + (x <= span ? x : 2 * span - x);
     }
 
     public int getScore() {
@@ -128,21 +278,43 @@ public class Day13 {
       return blockCount;
     }
 
+    public int getWidth() {
+      return width;
+    }
+
+    public int getHeight() {
+      return height;
+    }
+
+    /** Returns the tile id at the given index of the screen, in row-major order. */
+    int getTile(int index) {
+      return screen[index];
+    }
+
+    public long getFrames() {
+      return frames;
+    }
+
+    /** Returns the total number of instructions the program has run. */
+    public long getInstructions() {
+      return instructions;
+    }
+
+    /** Returns the frames computed per second of running the program. */
+    public double getFramesPerSecond() {
+      return frames / (nanos / 1e9);
+    }
+
     @Override
     public String toString() {
-      if (grid.isEmpty()) {
+      if (screen == null) {
         return "";
       }
 
-      int minX = grid.keySet().stream().mapToInt(Point::getX).min().getAsInt();
-      int maxX = grid.keySet().stream().mapToInt(Point::getX).max().getAsInt();
-      int minY = grid.keySet().stream().mapToInt(Point::getY).min().getAsInt();
-      int maxY = grid.keySet().stream().mapToInt(Point::getY).max().getAsInt();
-
       StringBuilder builder = new StringBuilder();
-      for (int y = minY; y <= maxY; y++) {
-        for (int x = minX; x <= maxX; x++) {
-          builder.append(grid.containsKey(new Point(x, y)) ? grid.get(new Point(x, y)).icon : '?');
+      for (int y = 0; y < height; y++) {
+        for (int x = 0; x < width; x++) {
+          builder.append(Tile.values()[screen[y * width + x]].icon);
         }
         builder.append('\n');
       }
@@ -152,6 +324,87 @@ public class Day13 {
     }
   }
 
+  /**
+   * Draws a game live on an ANSI terminal, at no more than a given frame rate. The renderer keeps a
+   * copy of what the terminal is showing, and each frame only rewrites the cells which differ from
+   * it, moving the cursor only where the next cell isn't the one it's already on.
+   */
+  private static class Renderer {
+    private static final String ESCAPE = "\u001b[";
+
+    private final Writer out;
+    private final long nanosPerFrame;
+    private long nextFrame;
+
+    private byte[] shown; // What the terminal shows, or -1 where nothing has been drawn yet
+    private int[] changes;
+    private int width;
+    private int height;
+    private int shownScore = -1;
+
+    Renderer(Writer out, double framesPerSecond) {
+      this.out = out;
+      nanosPerFrame = (long) (1e9 / framesPerSecond);
+      nextFrame = System.nanoTime();
+    }
+
+    void render(Game game) throws IOException {
+      if (shown == null) {
+        width = game.getWidth();
+        height = game.getHeight();
+        shown = new byte[width * height];
+        Arrays.fill(shown, (byte) -1);
+        changes = new int[shown.length];
+        out.write(ESCAPE + "?25l" + ESCAPE + "2J"); // Hide the cursor and clear the screen
+      }
+
+      int cursor = -1; // Index of the cell the cursor is on, if known
+      final int count = game.takeChanges(changes);
+      for (int i = 0; i < count; i++) {
+        final int index = changes[i];
+        final int tile = game.getTile(index);
+        if (tile == shown[index]) {
+          continue;
+        }
+        if (index != cursor) {
+          moveTo(index % width, index / width);
+        }
+        out.write(Tile.values()[tile].icon);
+        shown[index] = (byte) tile;
+        // The cursor doesn't move on past the last column
+        cursor = index % width == width - 1 ? -1 : index + 1;
+      }
+      if (game.getScore() != shownScore) {
+        shownScore = game.getScore();
+        moveTo(0, height);
+        out.write("[ CURRENT SCORE: " + shownScore + " ]");
+      }
+
+      waitForFrame();
+      out.flush();
+    }
+
+    /** Moves the cursor below the screen and shows it again. */
+    void finish() throws IOException {
+      moveTo(0, height + 1);
+      out.write(ESCAPE + "?25h");
+      out.flush();
+    }
+
+    private void moveTo(int x, int y) throws IOException {
+      out.write(ESCAPE + (y + 1) + ";" + (x + 1) + "H");
+    }
+
+    private void waitForFrame() {
+      long now = System.nanoTime();
+      while (now < nextFrame) {
+        LockSupport.parkNanos(nextFrame - now);
+        now = System.nanoTime();
+      }
+      nextFrame = Math.max(nextFrame, now - nanosPerFrame) + nanosPerFrame;
+    }
+  }
+
   private enum Tile {
     EMPTY(' '),
     WALL('#'),
@@ -164,22 +417,5 @@ public class Day13 {
     Tile(char icon) {
       this.icon = icon;
     }
-
-    public static Tile parseTile(int tile) {
-      switch (tile) {
-        case 0:
-          return EMPTY;
-        case 1:
-          return WALL;
-        case 2:
-          return BLOCK;
-        case 3:
-          return PADDLE;
-        case 4:
-          return BALL;
-        default:
-          throw new RuntimeException("Unexpected tile value: " + tile);
-      }
-    }
   }
 }
@@ -11,13 +11,12 @@ public class Day15 {
   public static final Point ORIGIN = new Point(0, 0);
 
   public static void main(String[] args) throws IOException {
-    long[] program = ParseUtility.extractLongs(FileUtility.fileToString("input/15.txt"));
+    long[] program = ProgramImage.load("input/15.txt").toLongArray();
 
     ShipComputer droid = new ShipComputer(program);
+    droid.enableIntTier(); // Carried over to every fork
 
-    Map<Point, Tile> world = new HashMap<>();
-    world.put(ORIGIN, Tile.EMPTY);
-    explore(droid, ORIGIN, world);
+    Map<Point, Tile> world = explore(droid, Integer.MAX_VALUE); // The whole area
     Point oxygenSensor =
         world.keySet().stream().filter(p -> world.get(p) == Tile.OXYGEN_SENSOR).findFirst().get();
 
@@ -55,18 +54,76 @@ public class Day15 {
     return steps;
   }
 
-  private static void explore(ShipComputer droid, Point point, Map<Point, Tile> world) {
-    for (Direction d : Direction.values()) {
-      Point targetPoint = point.plus(d.vector);
-      if (world.containsKey(targetPoint)) {
-        continue;
+  /**
+   * Maps everything within {@code maxDistance} moves of the droid, breadth first. Every cell on
+   * the frontier owns a droid which has just arrived there. Each round, the frontier's droids all
+   * try their unexplored directions in parallel, each direction on a fork of the cell's droid.
+   * Forks which get somewhere make up the next frontier and the rest are dropped, so no droid
+   * ever walks back, and the whole map takes one round per move to its farthest cell.
+   */
+  private static Map<Point, Tile> explore(ShipComputer droid, int maxDistance) {
+    Map<Point, Tile> world = new HashMap<>();
+    world.put(ORIGIN, Tile.EMPTY);
+    Map<Point, ShipComputer> frontier = new LinkedHashMap<>();
+    frontier.put(ORIGIN, droid);
+
+    for (int distance = 0; distance < maxDistance && !frontier.isEmpty(); distance++) {
+      // Each unexplored cell is claimed by just one frontier cell, so it's only probed once
+      List<Expansion> expansions = new ArrayList<>();
+      Set<Point> claimed = new HashSet<>();
+      for (Map.Entry<Point, ShipComputer> cell : frontier.entrySet()) {
+        Expansion expansion = new Expansion(cell.getKey(), cell.getValue());
+        for (Direction d : Direction.values()) {
+          Point targetPoint = cell.getKey().plus(d.vector);
+          if (!world.containsKey(targetPoint) && claimed.add(targetPoint)) {
+            expansion.directions.add(d);
+          }
+        }
+        if (!expansion.directions.isEmpty()) {
+          expansions.add(expansion);
+        }
       }
-      Tile tile = moveDroid(droid, d);
-      updateWorld(world, targetPoint, tile);
-      if (tile != Tile.WALL) {
-        explore(droid, targetPoint, world);
-        // Undo the droid's last step
-        moveDroid(droid, d.opposite());
+
+      // Forking changes the parent's memory bookkeeping, so each droid is only forked by its own
+      // expansion
+      expansions.parallelStream().forEach(Expansion::run);
+
+      Map<Point, ShipComputer> nextFrontier = new LinkedHashMap<>();
+      for (Expansion expansion : expansions) {
+        for (int i = 0; i < expansion.directions.size(); i++) {
+          Point targetPoint = expansion.point.plus(expansion.directions.get(i).vector);
+          updateWorld(world, targetPoint, expansion.tiles[i]);
+          if (expansion.tiles[i] != Tile.WALL) {
+            nextFrontier.put(targetPoint, expansion.branches[i]);
+          }
+        }
+      }
+      frontier = nextFrontier;
+    }
+
+    return world;
+  }
+
+  /** One frontier cell's droid trying each of the given directions, on a fork apiece. */
+  private static class Expansion {
+    final Point point;
+    final ShipComputer droid;
+    final List<Direction> directions = new ArrayList<>(Direction.values().length);
+    Tile[] tiles;
+    ShipComputer[] branches; // Null where the droid hit a wall
+
+    Expansion(Point point, ShipComputer droid) {
+      this.point = point;
+      this.droid = droid;
+    }
+
+    void run() {
+      tiles = new Tile[directions.size()];
+      branches = new ShipComputer[directions.size()];
+      for (int i = 0; i < tiles.length; i++) {
+        ShipComputer branch = droid.fork();
+        tiles[i] = moveDroid(branch, directions.get(i));
+        branches[i] = tiles[i] != Tile.WALL ? branch : null;
       }
     }
   }
@@ -0,0 +1,96 @@
+package advent;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Unboxed FIFO queue of {@code long} values, backed by a ring buffer which doubles in size when
+ * full. Used for the input and output of a {@link ShipComputer}. Not thread-safe.
+ */
+public class LongChannel {
+  private static final int DEFAULT_CAPACITY = 16;
+
+  private long[] buffer; // Length is always a power of two
+  private int head = 0; // Index of the oldest value
+  private int size = 0;
+
+  public LongChannel() {
+    buffer = new long[DEFAULT_CAPACITY];
+  }
+
+  public void add(long value) {
+    if (size == buffer.length) {
+      grow();
+    }
+    buffer[(head + size) & (buffer.length - 1)] = value;
+    size++;
+  }
+
+  /** Removes and returns the oldest value, throwing if the channel is empty. */
+  public long remove() {
+    if (size == 0) {
+      throw new NoSuchElementException();
+    }
+    final long value = buffer[head];
+    head = (head + 1) & (buffer.length - 1);
+    size--;
+    return value;
+  }
+
+  /** Returns the value {@code index} positions behind the oldest one without removing anything. */
+  public long get(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("Index " + index + " with size " + size);
+    }
+    return buffer[(head + index) & (buffer.length - 1)];
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public void clear() {
+    head = 0;
+    size = 0;
+  }
+
+  /** Appends every value in {@code other} to this channel, leaving {@code other} unchanged. */
+  public void addAll(LongChannel other) {
+    for (int i = 0; i < other.size; i++) {
+      add(other.get(i));
+    }
+  }
+
+  /** Removes every value from this channel and appends them to {@code target}. */
+  public void drainTo(LongChannel target) {
+    while (size > 0) {
+      target.add(remove());
+    }
+  }
+
+  public long[] toArray() {
+    long[] values = new long[size];
+    for (int i = 0; i < size; i++) {
+      values[i] = get(i);
+    }
+    return values;
+  }
+
+  private void grow() {
+    long[] grown = new long[buffer.length * 2];
+    for (int i = 0; i < size; i++) {
+      grown[i] = get(i);
+    }
+    buffer = grown;
+    head = 0;
+  }
+
+  @Override
+  public String toString() {
+    return Arrays.toString(toArray());
+  }
+}
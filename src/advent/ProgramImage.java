@@ -0,0 +1,219 @@
+package advent;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/**
+ * A parsed Intcode program, cached on disk as a binary image next to its source text so that
+ * later runs can skip parsing altogether.
+ *
+ * <p>The image for {@code input/09.txt} is {@code input/09.txt.intcode}. It consists of a fixed
+ * header followed by the program as little-endian longs:
+ *
+ * <pre>
+ *   int   magic ("ICIM")
+ *   int   format version
+ *   long  length of the source text in bytes
+ *   long  CRC32C of the source text
+ *   long  hash of the program (see {@link #hash()})
+ *   int   number of values
+ *   int   reserved (zero), keeping the values 8-byte aligned
+ *   long  values...
+ * </pre>
+ *
+ * The image is keyed by the content of the source, so editing the source simply causes it to be
+ * rebuilt. Images are written to a temporary file and moved into place, so concurrent runs never
+ * see a partial one. If the image can't be written (e.g. a read-only directory), the parsed program
+ * is still returned.
+ */
+public class ProgramImage {
+  private static final String EXTENSION = ".intcode";
+  private static final int MAGIC = 0x4D49_4349; // "ICIM" when read as little-endian bytes
+  private static final int VERSION = 1;
+  private static final int HEADER_BYTES = 40;
+
+  private final long[] program;
+  private final long hash;
+
+  private ProgramImage(long[] program, long hash) {
+    this.program = program;
+    this.hash = hash;
+  }
+
+  /** Wraps a program that is already in memory. The array is copied. */
+  public static ProgramImage of(long[] program) {
+    return new ProgramImage(program.clone(), hashOf(program));
+  }
+
+  /**
+   * Returns the program stored as text at the given path, reading it from the binary image if an
+   * up-to-date one exists and otherwise parsing the text and writing a fresh image.
+   */
+  public static ProgramImage load(String sourcePath) throws IOException {
+    Path source = Paths.get(sourcePath);
+    Path imagePath = Paths.get(sourcePath + EXTENSION);
+    byte[] text = Files.readAllBytes(source);
+    CRC32C crc = new CRC32C();
+    crc.update(text);
+    final long sourceHash = crc.getValue();
+
+    if (Files.isRegularFile(imagePath)) {
+      ProgramImage cached = readImage(imagePath, text.length, sourceHash);
+      if (cached != null) {
+        return cached;
+      }
+    }
+
+    long[] program = parse(text);
+    ProgramImage image = new ProgramImage(program, hashOf(program));
+    try {
+      image.writeImage(imagePath, text.length, sourceHash);
+    } catch (IOException e) {
+      // The cache is only an optimization
+    }
+    return image;
+  }
+
+  /** Returns the number of values in the program. */
+  public int length() {
+    return program.length;
+  }
+
+  /**
+   * Returns a 64-bit hash of the program's values, suitable for recognizing the same program again
+   * (e.g. as part of a cache key).
+   */
+  public long hash() {
+    return hash;
+  }
+
+  public long[] toLongArray() {
+    return program.clone();
+  }
+
+  /** Returns the program as ints, throwing if any value doesn't fit in one. */
+  public int[] toIntArray() {
+    int[] ints = new int[program.length];
+    for (int i = 0; i < program.length; i++) {
+      ints[i] = Math.toIntExact(program[i]);
+    }
+    return ints;
+  }
+
+  /** Exposes the values without copying, for {@link ShipComputer} (which copies them anyway). */
+  long[] values() {
+    return program;
+  }
+
+  static long hashOf(long[] program) {
+    long hash = 0xCBF2_9CE4_8422_2325L; // FNV-1a, one long at a time
+    for (long value : program) {
+      hash = (hash ^ value) * 0x100_0000_01B3L;
+    }
+    return hash ^ (hash >>> 32);
+  }
+
+  private static ProgramImage readImage(Path imagePath, long sourceLength, long sourceHash)
+      throws IOException {
+    try (FileChannel channel = FileChannel.open(imagePath, StandardOpenOption.READ)) {
+      final long size = channel.size();
+      if (size < HEADER_BYTES) {
+        return null;
+      }
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+      if (buffer.getInt() != MAGIC
+          || buffer.getInt() != VERSION
+          || buffer.getLong() != sourceLength
+          || buffer.getLong() != sourceHash) {
+        return null; // Stale, or not an image at all
+      }
+      final long hash = buffer.getLong();
+      final int length = buffer.getInt();
+      buffer.getInt(); // Reserved
+      if (length < 0 || size != HEADER_BYTES + 8L * length) {
+        return null;
+      }
+
+      long[] program = new long[length];
+      LongBuffer values = buffer.asLongBuffer();
+      values.get(program);
+      return new ProgramImage(program, hash);
+    }
+  }
+
+  private void writeImage(Path imagePath, long sourceLength, long sourceHash) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + 8 * program.length);
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    buffer.putInt(MAGIC).putInt(VERSION).putLong(sourceLength).putLong(sourceHash).putLong(hash);
+    buffer.putInt(program.length).putInt(0);
+    buffer.asLongBuffer().put(program);
+
+    Path directory = imagePath.toAbsolutePath().getParent();
+    Path temporary = Files.createTempFile(directory, imagePath.getFileName().toString(), ".tmp");
+    try {
+      try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+      }
+      Files.move(temporary, imagePath, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+  }
+
+  /**
+   * Parses comma-separated (or otherwise delimited) integers straight from the source bytes, with
+   * no intermediate strings or boxing. Accepts the same values as {@link
+   * ParseUtility#extractLongs}.
+   */
+  private static long[] parse(byte[] text) {
+    long[] values = new long[Math.max(16, text.length / 2)];
+    int count = 0;
+
+    int i = 0;
+    while (i < text.length) {
+      final byte c = text[i];
+      final boolean signed = (c == '-' || c == '+') && i + 1 < text.length && isDigit(text[i + 1]);
+      if (!signed && !isDigit(c)) {
+        i++;
+        continue;
+      }
+
+      final boolean negative = c == '-';
+      if (signed) {
+        i++;
+      }
+      long value = 0;
+      while (i < text.length && isDigit(text[i])) {
+        // Accumulating negatively lets Long.MIN_VALUE parse without overflow
+        value = Math.subtractExact(Math.multiplyExact(value, 10), text[i] - '0');
+        i++;
+      }
+
+      if (count == values.length) {
+        values = Arrays.copyOf(values, count * 2);
+      }
+      values[count++] = negative ? value : Math.negateExact(value);
+    }
+
+    return Arrays.copyOf(values, count);
+  }
+
+  private static boolean isDigit(byte c) {
+    return c >= '0' && c <= '9';
+  }
+}
@@ -0,0 +1,389 @@
+package advent;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Runs one Intcode program on many independent lanes at once, each lane being a complete machine
+ * with its own memory, registers and I/O queues, e.g. the same program with different inputs.
+ *
+ * <p>State is kept as a structure of arrays. Memory is interleaved by address ({@code
+ * memory[address * lanes + lane]}), so the lanes' copies of any one cell sit side by side. Lanes
+ * whose instruction pointers agree form a group, and a group executes each instruction in lockstep:
+ * the instruction is fetched and decoded once, then applied to every lane of the group in a tight
+ * loop. When a conditional jump sends lanes different ways the group splits, and groups which
+ * arrive at the same address merge again. The group with the lowest instruction pointer always
+ * goes next, which is what lets loops that run a different number of times reconverge.
+ *
+ * <p>Memory is flat only, and grows to at most {@code max(65536, program length)} cells per lane;
+ * addresses beyond that are an error (unlike {@link ShipMemory}, there are no sparse pages).
+ */
+public class ShipBatch {
+  static final int MIN_CELL_LIMIT = 1 << 16;
+
+  private static final byte RUNNING = 0;
+  private static final byte AWAITING_INPUT = 1;
+  private static final byte HALTED = 2;
+
+  private final int lanes;
+  private final int cellLimit;
+  private int cells; // Addresses currently backed by memory, for every lane
+  private long[] memory;
+
+  private final long[] instructionPointers;
+  private final long[] relativeBases;
+  private final byte[] states;
+  private final LongChannel[] inputs;
+  private final LongChannel[] outputs;
+
+  private long dispatches = 0; // Instructions decoded, once per group
+  private long laneInstructions = 0; // Instructions executed, once per lane
+
+  public ShipBatch(long[] program, int lanes) {
+    if (lanes <= 0) {
+      throw new IllegalArgumentException("A batch needs at least one lane: " + lanes);
+    }
+    this.lanes = lanes;
+    cellLimit = Math.max(MIN_CELL_LIMIT, program.length);
+    cells = program.length;
+    memory = new long[Math.multiplyExact(cells, lanes)];
+    for (int address = 0; address < program.length; address++) {
+      Arrays.fill(memory, address * lanes, (address + 1) * lanes, program[address]);
+    }
+
+    instructionPointers = new long[lanes];
+    relativeBases = new long[lanes];
+    states = new byte[lanes];
+    inputs = new LongChannel[lanes];
+    outputs = new LongChannel[lanes];
+    for (int lane = 0; lane < lanes; lane++) {
+      inputs[lane] = new LongChannel();
+      outputs[lane] = new LongChannel();
+    }
+  }
+
+  public ShipBatch(ProgramImage program, int lanes) {
+    this(program.values(), lanes);
+  }
+
+  public int getLaneCount() {
+    return lanes;
+  }
+
+  public long readMemory(int lane, long address) {
+    if (address >= 0 && address < cells) {
+      return memory[(int) address * lanes + lane];
+    }
+    checkAddress(address);
+    return 0;
+  }
+
+  public void writeMemory(int lane, long address, long value) {
+    if (address < 0 || address >= cells) {
+      checkAddress(address);
+      grow((int) address + 1);
+    }
+    memory[(int) address * lanes + lane] = value;
+  }
+
+  public void addInput(int lane, long value) {
+    inputs[lane].add(value);
+  }
+
+  long getInstructionPointer(int lane) {
+    return instructionPointers[lane];
+  }
+
+  public LongChannel getOutput(int lane) {
+    return outputs[lane];
+  }
+
+  public boolean isHalted(int lane) {
+    return states[lane] == HALTED;
+  }
+
+  public boolean isAwaitingInput(int lane) {
+    return states[lane] == AWAITING_INPUT;
+  }
+
+  /** Returns how many times an instruction has been decoded, i.e. executed by a whole group. */
+  public long getDispatches() {
+    return dispatches;
+  }
+
+  /** Returns the total number of instructions executed, counting each lane separately. */
+  public long getLaneInstructions() {
+    return laneInstructions;
+  }
+
+  /**
+   * Executes every lane until it either halts or reaches an input instruction with no input queued
+   * for it. Like {@link ShipComputer#execute()}, lanes waiting for input resume when this is called
+   * again.
+   *
+   * @return {@code true} if any lane is waiting for input, {@code false} if all have halted.
+   */
+  public boolean execute() {
+    TreeMap<Long, Group> groups = new TreeMap<>();
+    for (int lane = 0; lane < lanes; lane++) {
+      if (states[lane] != HALTED) {
+        states[lane] = RUNNING;
+        groups.computeIfAbsent(instructionPointers[lane], ip -> new Group()).add(lane);
+      }
+    }
+
+    while (!groups.isEmpty()) {
+      Map.Entry<Long, Group> lowest = groups.pollFirstEntry();
+      long ip = lowest.getKey();
+      Group group = lowest.getValue();
+
+      // Keep going for as long as no other group is behind this one
+      while (true) {
+        step(group, ip, groups);
+        if (group.size == 0) {
+          break;
+        }
+        ip = instructionPointers[group.lanes[0]];
+        if (!groups.isEmpty()) {
+          final long next = groups.firstKey();
+          if (next < ip) {
+            enqueue(groups, ip, group);
+            break;
+          } else if (next == ip) {
+            group.addAll(groups.remove(next));
+          }
+        }
+      }
+    }
+
+    for (byte state : states) {
+      if (state == AWAITING_INPUT) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Executes the instruction at {@code ip} for every lane in the group. Afterwards the group only
+   * holds lanes which are still running and all agree on the next instruction pointer; any others
+   * have been moved into {@code groups} (or dropped, if they stopped).
+   */
+  private void step(Group group, long ip, TreeMap<Long, Group> groups) {
+    if (ip < 0) {
+      throw new RuntimeException("Instruction pointer out of bounds in lane " + group.lanes[0]);
+    }
+
+    // Lanes may have rewritten their code differently, so check they agree on the instruction
+    final long word = readMemory(group.lanes[0], ip);
+    for (int i = 1; i < group.size; i++) {
+      if (readMemory(group.lanes[i], ip) != word) {
+        splitByInstruction(group, ip, groups);
+        return;
+      }
+    }
+
+    dispatches++;
+    laneInstructions += group.size;
+    final int instruction = ShipComputer.decodeInstruction(word);
+    final int[] members = group.lanes;
+    final int size = group.size;
+
+    switch (instruction & ShipComputer.OPCODE_MASK) {
+      case 1: // ADD
+        for (int i = 0; i < size; i++) {
+          final int lane = members[i];
+          final long sum = read(lane, ip, instruction, 0) + read(lane, ip, instruction, 1);
+          write(lane, ip, instruction, 2, sum);
+          instructionPointers[lane] = ip + 4;
+        }
+        break;
+      case 2: // MULTIPLY
+        for (int i = 0; i < size; i++) {
+          final int lane = members[i];
+          final long product = read(lane, ip, instruction, 0) * read(lane, ip, instruction, 1);
+          write(lane, ip, instruction, 2, product);
+          instructionPointers[lane] = ip + 4;
+        }
+        break;
+      case 3: // INPUT
+        for (int i = 0; i < size; i++) {
+          final int lane = members[i];
+          if (inputs[lane].isEmpty()) {
+            states[lane] = AWAITING_INPUT;
+          } else {
+            write(lane, ip, instruction, 0, inputs[lane].remove());
+            instructionPointers[lane] = ip + 2;
+          }
+        }
+        break;
+      case 4: // OUT
+        for (int i = 0; i < size; i++) {
+          final int lane = members[i];
+          outputs[lane].add(read(lane, ip, instruction, 0));
+          instructionPointers[lane] = ip + 2;
+        }
+        break;
+      case 5: // JUMP IF TRUE
+      case 6: // JUMP IF FALSE
+        final boolean jumpIfTrue = (instruction & ShipComputer.OPCODE_MASK) == 5;
+        for (int i = 0; i < size; i++) {
+          final int lane = members[i];
+          if ((read(lane, ip, instruction, 0) != 0) == jumpIfTrue) {
+            instructionPointers[lane] = read(lane, ip, instruction, 1);
+          } else {
+            instructionPointers[lane] = ip + 3;
+          }
+        }
+        break;
+      case 7: // LESS THAN
+        for (int i = 0; i < size; i++) {
+          final int lane = members[i];
+          final boolean less = read(lane, ip, instruction, 0) < read(lane, ip, instruction, 1);
+          write(lane, ip, instruction, 2, less ? 1 : 0);
+          instructionPointers[lane] = ip + 4;
+        }
+        break;
+      case 8: // EQUALS
+        for (int i = 0; i < size; i++) {
+          final int lane = members[i];
+          final boolean equal = read(lane, ip, instruction, 0) == read(lane, ip, instruction, 1);
+          write(lane, ip, instruction, 2, equal ? 1 : 0);
+          instructionPointers[lane] = ip + 4;
+        }
+        break;
+      case 9: // ADJUST RELATIVE BASE
+        for (int i = 0; i < size; i++) {
+          final int lane = members[i];
+          relativeBases[lane] += read(lane, ip, instruction, 0);
+          instructionPointers[lane] = ip + 2;
+        }
+        break;
+      case 99: // END --- terminates program
+        for (int i = 0; i < size; i++) {
+          states[members[i]] = HALTED;
+        }
+        break;
+      default:
+        throw new RuntimeException("Unexpected opcode in lane " + members[0] + ": " + word);
+    }
+
+    regroup(group, groups);
+  }
+
+  /** Drops lanes which stopped, and moves lanes which diverged from the first into other groups. */
+  private void regroup(Group group, TreeMap<Long, Group> groups) {
+    int kept = 0;
+    long target = 0;
+    for (int i = 0; i < group.size; i++) {
+      final int lane = group.lanes[i];
+      if (states[lane] != RUNNING) {
+        continue;
+      }
+      final long ip = instructionPointers[lane];
+      if (kept == 0) {
+        target = ip;
+      }
+      if (ip == target) {
+        group.lanes[kept++] = lane;
+      } else {
+        groups.computeIfAbsent(ip, address -> new Group()).add(lane);
+      }
+    }
+    group.size = kept;
+  }
+
+  private static void enqueue(TreeMap<Long, Group> groups, long ip, Group group) {
+    Group existing = groups.get(ip);
+    if (existing == null) {
+      groups.put(ip, group);
+    } else {
+      existing.addAll(group);
+    }
+  }
+
+  /** Runs lanes whose code differs at {@code ip} separately, one group per distinct instruction. */
+  private void splitByInstruction(Group group, long ip, TreeMap<Long, Group> groups) {
+    Map<Long, Group> byInstruction = new TreeMap<>();
+    for (int i = 0; i < group.size; i++) {
+      final int lane = group.lanes[i];
+      byInstruction.computeIfAbsent(readMemory(lane, ip), word -> new Group()).add(lane);
+    }
+    group.size = 0;
+
+    for (Group split : byInstruction.values()) {
+      step(split, ip, groups);
+      if (split.size > 0) {
+        enqueue(groups, instructionPointers[split.lanes[0]], split);
+      }
+    }
+  }
+
+  private long read(int lane, long ip, int instruction, int index) {
+    final long parameter = readMemory(lane, ip + index + 1);
+    switch (ShipComputer.getMode(instruction, index)) {
+      case 0: // Position mode
+        return readMemory(lane, parameter);
+      case 1: // Immediate mode
+        return parameter;
+      case 2: // Relative mode
+        return readMemory(lane, relativeBases[lane] + parameter);
+      default:
+        throw new RuntimeException("Unknown parameter mode in lane " + lane);
+    }
+  }
+
+  private void write(int lane, long ip, int instruction, int index, long value) {
+    final long parameter = readMemory(lane, ip + index + 1);
+    switch (ShipComputer.getMode(instruction, index)) {
+      case 0: // Position mode
+        writeMemory(lane, parameter, value);
+        break;
+      case 2: // Relative mode
+        writeMemory(lane, relativeBases[lane] + parameter, value);
+        break;
+      default:
+        throw new RuntimeException(
+            "Parameters describing output locations must not be in immediate mode");
+    }
+  }
+
+  private void checkAddress(long address) {
+    if (address < 0) {
+      throw new ArrayIndexOutOfBoundsException(
+          "Cannot access memory at negative positions: " + address);
+    }
+    if (address >= cellLimit) {
+      throw new ArrayIndexOutOfBoundsException(
+          "Address " + address + " is beyond the batch memory limit of " + cellLimit);
+    }
+  }
+
+  private void grow(int minimumCells) {
+    final int newCells = Math.max(minimumCells, Math.min(cellLimit, Math.max(16, cells * 2)));
+    memory = Arrays.copyOf(memory, Math.multiplyExact(newCells, lanes));
+    cells = newCells;
+  }
+
+  /** Lanes which currently share an instruction pointer. */
+  private static class Group {
+    int[] lanes = new int[8];
+    int size = 0;
+
+    void add(int lane) {
+      if (size == lanes.length) {
+        lanes = Arrays.copyOf(lanes, size * 2);
+      }
+      lanes[size++] = lane;
+    }
+
+    void addAll(Group other) {
+      if (size + other.size > lanes.length) {
+        lanes = Arrays.copyOf(lanes, Math.max(size + other.size, size * 2));
+      }
+      System.arraycopy(other.lanes, 0, lanes, size, other.size);
+      size += other.size;
+    }
+  }
+}
@@ -0,0 +1,579 @@
+package advent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Optional compiling tier for a {@link ShipComputer}. Jump targets which are reached often enough
+ * are treated as the start of a basic block: the straight-line run of arithmetic instructions from
+ * there up to (and including) the next jump is translated into JVM bytecode, defined as a hidden
+ * class and left to HotSpot to optimize.
+ *
+ * <p>Input, output and halt instructions are never compiled, so a block always hands control back
+ * to the interpreter before the program can suspend. Every cell a block was compiled from is
+ * watched; if the program writes over one of them the block is discarded for good and its start
+ * address is interpreted from then on.
+ *
+ * <p>A {@link ShipComputer#fork() fork} shares its parent's blocks, which hold no state of their
+ * own, along with the bookkeeping for them. Whichever side first changes that bookkeeping (by
+ * compiling a block or discarding one) takes a private copy, and likewise for the hit counts.
+ */
+class ShipCompiler {
+  private static final int HOT_THRESHOLD = 64;
+  private static final int MAX_BLOCK_INSTRUCTIONS = 256;
+  private static final int MAX_BLOCKS = 1024;
+
+  /** A compiled basic block. Runs to the end of the block and returns the next address. */
+  interface Block {
+    long run(ShipComputer computer);
+  }
+
+  private final ShipComputer computer;
+  private final int codeSize;
+
+  private int[] hits;
+  private boolean hitsShared = false; // Set once hits is visible to a fork as well
+  private Block[] blocks;
+  private int[] blockEnds; // Exclusive end address of the block starting at each address
+  private int[] blockSizes; // Number of instructions in the block starting at each address
+  private boolean[] watched;
+  private boolean[] uncompilable;
+  private List<Integer> blockStarts = new ArrayList<>();
+  private boolean blocksShared = false; // Set once the arrays above are visible to a fork as well
+
+  /** Set whenever a watched cell is written. Compiled code checks this after each write. */
+  boolean codeWritten = false;
+
+  ShipCompiler(ShipComputer computer, int codeSize) {
+    this.computer = computer;
+    this.codeSize = codeSize;
+    hits = new int[codeSize];
+    blocks = new Block[codeSize];
+    blockEnds = new int[codeSize];
+    blockSizes = new int[codeSize];
+    watched = new boolean[codeSize];
+    uncompilable = new boolean[codeSize];
+  }
+
+  private ShipCompiler(ShipCompiler parent, ShipComputer computer) {
+    this.computer = computer;
+    codeSize = parent.codeSize;
+    hits = parent.hits;
+    blocks = parent.blocks;
+    blockEnds = parent.blockEnds;
+    blockSizes = parent.blockSizes;
+    watched = parent.watched;
+    uncompilable = parent.uncompilable;
+    blockStarts = parent.blockStarts;
+    hitsShared = parent.hitsShared = true;
+    blocksShared = parent.blocksShared = true;
+  }
+
+  /**
+   * Returns a compiler for a fork of this one's computer, which must have the same code in memory.
+   * Nothing is copied until one side compiles or discards a block.
+   */
+  ShipCompiler fork(ShipComputer computer) {
+    return new ShipCompiler(this, computer);
+  }
+
+  /**
+   * Runs compiled code starting at the given jump target for as long as compiled blocks are
+   * available, and returns the address at which the interpreter should resume. Each block charges
+   * its instructions to the computer's budget, and no new block is started once that runs out.
+   */
+  long enter(long address) {
+    while (address >= 0 && address < codeSize && computer.budget > 0) {
+      final int start = (int) address;
+      Block block = blocks[start];
+      if (block == null) {
+        if (hitsShared) {
+          hits = hits.clone();
+          hitsShared = false;
+        }
+        if (uncompilable[start] || ++hits[start] < HOT_THRESHOLD) {
+          return address;
+        }
+        block = compile(start);
+        if (block == null) {
+          return address;
+        }
+      }
+      codeWritten = false;
+      address = block.run(computer);
+      computer.budget -= blockSizes[start];
+    }
+    return address;
+  }
+
+  /** Called by the computer after every memory write. */
+  void onWrite(long address) {
+    if (address < codeSize && watched[(int) address]) {
+      codeWritten = true;
+      invalidate((int) address);
+    }
+  }
+
+  private void invalidate(int address) {
+    unshareBlocks();
+    for (int i = blockStarts.size() - 1; i >= 0; i--) {
+      final int start = blockStarts.get(i);
+      if (start <= address && address < blockEnds[start]) {
+        blocks[start] = null;
+        uncompilable[start] = true;
+        blockStarts.remove(i);
+      }
+    }
+
+    // Blocks may overlap, so the watch list is rebuilt from whatever survived
+    Arrays.fill(watched, false);
+    for (int start : blockStarts) {
+      Arrays.fill(watched, start, blockEnds[start], true);
+    }
+  }
+
+  private Block compile(int start) {
+    unshareBlocks();
+    if (blockStarts.size() >= MAX_BLOCKS) {
+      uncompilable[start] = true;
+      return null;
+    }
+
+    BlockWriter writer = new BlockWriter();
+    int end = writer.translate(start);
+    if (end < 0) {
+      uncompilable[start] = true;
+      return null;
+    }
+
+    Block block;
+    try {
+      block =
+          (Block)
+              MethodHandles.lookup()
+                  .defineHiddenClass(writer.toClassFile(), true)
+                  .lookupClass()
+                  .getDeclaredConstructor()
+                  .newInstance();
+    } catch (ReflectiveOperationException e) {
+      throw new RuntimeException("Failed to load compiled block at " + start, e);
+    }
+
+    blocks[start] = block;
+    blockEnds[start] = end;
+    blockSizes[start] = writer.size;
+    blockStarts.add(start);
+    Arrays.fill(watched, start, end, true);
+    return block;
+  }
+
+  private void unshareBlocks() {
+    if (blocksShared) {
+      blocks = blocks.clone();
+      blockEnds = blockEnds.clone();
+      blockSizes = blockSizes.clone();
+      watched = watched.clone();
+      uncompilable = uncompilable.clone();
+      blockStarts = new ArrayList<>(blockStarts);
+      blocksShared = false;
+    }
+  }
+
+  /** Translates a single basic block into a class file implementing {@link Block}. */
+  private class BlockWriter {
+    private static final String CLASS_NAME = "advent/CompiledBlock";
+    private static final String COMPUTER = "advent/ShipComputer";
+    private static final String MEMORY = "advent/ShipMemory";
+    private static final String COMPILER = "advent/ShipCompiler";
+
+    // run() keeps the computer in local 1, its memory in local 2 and the relative base in 3-4
+    private static final int MAX_LOCALS = 5;
+    private static final int MAX_STACK = 16;
+
+    private final ConstantPool pool = new ConstantPool();
+    private final CodeBuffer code = new CodeBuffer();
+    private int size = 0; // Number of instructions translated
+
+    /**
+     * Emits code for the block starting at the given address. Returns the exclusive end address of
+     * the cells the block was compiled from, or -1 if there is nothing worth compiling there.
+     */
+    int translate(int start) {
+      code.op(Op.ALOAD_1).op(Op.GETFIELD).u2(pool.field(COMPUTER, "memory", "L" + MEMORY + ";"));
+      code.op(Op.ASTORE_2);
+      code.op(Op.ALOAD_1).op(Op.GETFIELD).u2(pool.field(COMPUTER, "relativeBase", "J"));
+      code.op(Op.LSTORE_3);
+
+      int address = start;
+      int count = 0;
+      for (; count < MAX_BLOCK_INSTRUCTIONS && address + 4 <= codeSize; count++) {
+        final int instruction = ShipComputer.decodeInstruction(computer.readMemory(address));
+        final int opCode = instruction & ShipComputer.OPCODE_MASK;
+
+        switch (opCode) {
+          case 1: // ADD
+          case 2: // MULTIPLY
+          case 7: // LESS THAN
+          case 8: // EQUALS
+            if (!canRead(instruction, 0) || !canRead(instruction, 1) || !canWrite(instruction, 2)) {
+              return finish(address, count);
+            }
+            code.op(Op.ALOAD_1);
+            pushAddress(instruction, 2, address);
+            pushParameter(instruction, 0, address);
+            pushParameter(instruction, 1, address);
+            emitOperator(opCode);
+            code.op(Op.INVOKEVIRTUAL).u2(pool.method(COMPUTER, "writeMemory", "(JJ)V"));
+            address += 4;
+            emitWriteCheck(address);
+            break;
+          case 5: // JUMP IF TRUE
+          case 6: // JUMP IF FALSE
+            if (!canRead(instruction, 0) || !canRead(instruction, 1)) {
+              return finish(address, count);
+            }
+            pushParameter(instruction, 0, address);
+            code.op(Op.LCONST_0).op(Op.LCMP);
+            int notTaken = code.branch(opCode == 5 ? Op.IFEQ : Op.IFNE);
+            storeRelativeBase();
+            pushParameter(instruction, 1, address);
+            code.op(Op.LRETURN);
+            code.bind(notTaken);
+            exit(address + 3);
+            size = count + 1;
+            return address + 3;
+          case 9: // ADJUST RELATIVE BASE
+            if (!canRead(instruction, 0)) {
+              return finish(address, count);
+            }
+            code.op(Op.LLOAD_3);
+            pushParameter(instruction, 0, address);
+            code.op(Op.LADD).op(Op.LSTORE_3);
+            address += 2;
+            break;
+          default: // I/O, halt and anything unexpected are left to the interpreter
+            return finish(address, count);
+        }
+      }
+
+      return finish(address, count);
+    }
+
+    private int finish(int address, int count) {
+      if (count == 0) {
+        return -1;
+      }
+      size = count;
+      exit(address);
+      return address;
+    }
+
+    private boolean canRead(int instruction, int index) {
+      return ShipComputer.getMode(instruction, index) <= 2;
+    }
+
+    private boolean canWrite(int instruction, int index) {
+      int mode = ShipComputer.getMode(instruction, index);
+      return mode == 0 || mode == 2;
+    }
+
+    private long operand(int address, int index) {
+      return computer.readMemory(address + index + 1);
+    }
+
+    private void pushParameter(int instruction, int index, int address) {
+      final long parameter = operand(address, index);
+      switch (ShipComputer.getMode(instruction, index)) {
+        case 0: // Position mode
+          code.op(Op.ALOAD_2);
+          pushLong(parameter);
+          code.op(Op.INVOKEVIRTUAL).u2(pool.method(MEMORY, "read", "(J)J"));
+          break;
+        case 1: // Immediate mode
+          pushLong(parameter);
+          break;
+        default: // Relative mode
+          code.op(Op.ALOAD_2).op(Op.LLOAD_3);
+          pushLong(parameter);
+          code.op(Op.LADD).op(Op.INVOKEVIRTUAL).u2(pool.method(MEMORY, "read", "(J)J"));
+      }
+    }
+
+    private void pushAddress(int instruction, int index, int address) {
+      final long parameter = operand(address, index);
+      if (ShipComputer.getMode(instruction, index) == 2) {
+        code.op(Op.LLOAD_3);
+        pushLong(parameter);
+        code.op(Op.LADD);
+      } else {
+        pushLong(parameter);
+      }
+    }
+
+    private void pushLong(long value) {
+      if (value == 0) {
+        code.op(Op.LCONST_0);
+      } else if (value == 1) {
+        code.op(Op.LCONST_1);
+      } else {
+        code.op(Op.LDC2_W).u2(pool.longConstant(value));
+      }
+    }
+
+    private void emitOperator(int opCode) {
+      switch (opCode) {
+        case 1:
+          code.op(Op.LADD);
+          return;
+        case 2:
+          code.op(Op.LMUL);
+          return;
+        default: // Comparisons produce 1 or 0
+          code.op(Op.LCMP);
+          int otherwise = code.branch(opCode == 7 ? Op.IFGE : Op.IFNE);
+          code.op(Op.LCONST_1);
+          int done = code.branch(Op.GOTO);
+          code.bind(otherwise);
+          code.op(Op.LCONST_0);
+          code.bind(done);
+      }
+    }
+
+    /** Leaves the block early if the preceding write landed on compiled code. */
+    private void emitWriteCheck(int nextAddress) {
+      code.op(Op.ALOAD_1);
+      code.op(Op.GETFIELD).u2(pool.field(COMPUTER, "compiler", "L" + COMPILER + ";"));
+      code.op(Op.GETFIELD).u2(pool.field(COMPILER, "codeWritten", "Z"));
+      int unchanged = code.branch(Op.IFEQ);
+      exit(nextAddress);
+      code.bind(unchanged);
+    }
+
+    private void storeRelativeBase() {
+      code.op(Op.ALOAD_1).op(Op.LLOAD_3);
+      code.op(Op.PUTFIELD).u2(pool.field(COMPUTER, "relativeBase", "J"));
+    }
+
+    private void exit(long nextAddress) {
+      storeRelativeBase();
+      pushLong(nextAddress);
+      code.op(Op.LRETURN);
+    }
+
+    byte[] toClassFile() {
+      final int thisClass = pool.classRef(CLASS_NAME);
+      final int superClass = pool.classRef("java/lang/Object");
+      final int blockInterface = pool.classRef(COMPILER + "$Block");
+      final int objectInit = pool.method("java/lang/Object", "<init>", "()V");
+      final int codeName = pool.utf8("Code");
+      final int initName = pool.utf8("<init>");
+      final int initType = pool.utf8("()V");
+      final int runName = pool.utf8("run");
+      final int runType = pool.utf8("(L" + COMPUTER + ";)J");
+
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      try (DataOutputStream out = new DataOutputStream(bytes)) {
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);
+        out.writeShort(49); // Old enough that no stack map frames are required
+        pool.writeTo(out);
+        out.writeShort(0x0031); // ACC_PUBLIC | ACC_FINAL | ACC_SUPER
+        out.writeShort(thisClass);
+        out.writeShort(superClass);
+        out.writeShort(1);
+        out.writeShort(blockInterface);
+        out.writeShort(0); // Fields
+        out.writeShort(2); // Methods
+
+        CodeBuffer init = new CodeBuffer();
+        init.op(Op.ALOAD_0).op(Op.INVOKESPECIAL).u2(objectInit).op(Op.RETURN);
+        writeMethod(out, initName, initType, codeName, init, 1, 1);
+        writeMethod(out, runName, runType, codeName, code, MAX_STACK, MAX_LOCALS);
+
+        out.writeShort(0); // Class attributes
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      return bytes.toByteArray();
+    }
+
+    private void writeMethod(
+        DataOutputStream out,
+        int name,
+        int type,
+        int codeName,
+        CodeBuffer body,
+        int maxStack,
+        int maxLocals)
+        throws IOException {
+      out.writeShort(0x0001); // ACC_PUBLIC
+      out.writeShort(name);
+      out.writeShort(type);
+      out.writeShort(1);
+      out.writeShort(codeName);
+      out.writeInt(12 + body.size());
+      out.writeShort(maxStack);
+      out.writeShort(maxLocals);
+      out.writeInt(body.size());
+      body.writeTo(out);
+      out.writeShort(0); // Exception table
+      out.writeShort(0); // Code attributes
+    }
+  }
+
+  private static class Op {
+    static final int LCONST_0 = 0x09;
+    static final int LCONST_1 = 0x0a;
+    static final int LDC2_W = 0x14;
+    static final int LLOAD_3 = 0x21;
+    static final int ALOAD_0 = 0x2a;
+    static final int ALOAD_1 = 0x2b;
+    static final int ALOAD_2 = 0x2c;
+    static final int LSTORE_3 = 0x42;
+    static final int ASTORE_2 = 0x4d;
+    static final int LADD = 0x61;
+    static final int LMUL = 0x69;
+    static final int LCMP = 0x94;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IFGE = 0x9c;
+    static final int GOTO = 0xa7;
+    static final int LRETURN = 0xad;
+    static final int RETURN = 0xb1;
+    static final int GETFIELD = 0xb4;
+    static final int PUTFIELD = 0xb5;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+  }
+
+  /** Growable bytecode buffer with support for forward branches. */
+  private static class CodeBuffer {
+    private byte[] bytes = new byte[256];
+    private int size = 0;
+
+    CodeBuffer op(int opCode) {
+      return u1(opCode);
+    }
+
+    CodeBuffer u1(int value) {
+      if (size == bytes.length) {
+        bytes = Arrays.copyOf(bytes, size * 2);
+      }
+      bytes[size++] = (byte) value;
+      return this;
+    }
+
+    CodeBuffer u2(int value) {
+      return u1(value >>> 8).u1(value);
+    }
+
+    /** Emits a branch with a placeholder offset, returning a handle to pass to {@link #bind}. */
+    int branch(int opCode) {
+      final int position = size;
+      op(opCode).u2(0);
+      return position;
+    }
+
+    /** Points the branch emitted at {@code position} to the current end of the buffer. */
+    void bind(int position) {
+      final int offset = size - position;
+      if (offset > Short.MAX_VALUE) {
+        throw new IllegalStateException("Compiled block too large");
+      }
+      bytes[position + 1] = (byte) (offset >>> 8);
+      bytes[position + 2] = (byte) offset;
+    }
+
+    int size() {
+      return size;
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+      out.write(bytes, 0, size);
+    }
+  }
+
+  private static class ConstantPool {
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(bytes);
+    private final Map<String, Integer> entries = new HashMap<>();
+    private int count = 1;
+
+    int utf8(String value) {
+      return entry("U" + value, 1, () -> out.writeUTF(value));
+    }
+
+    int classRef(String name) {
+      final int nameIndex = utf8(name);
+      return entry("C" + name, 7, () -> out.writeShort(nameIndex));
+    }
+
+    int field(String owner, String name, String type) {
+      return member(9, owner, name, type);
+    }
+
+    int method(String owner, String name, String type) {
+      return member(10, owner, name, type);
+    }
+
+    int longConstant(long value) {
+      int index = entry("J" + value, 5, () -> out.writeLong(value));
+      if (index == count - 1) {
+        count++; // Long constants take up two slots
+      }
+      return index;
+    }
+
+    private int member(int tag, String owner, String name, String type) {
+      final int ownerIndex = classRef(owner);
+      final int nameIndex = utf8(name);
+      final int typeIndex = utf8(type);
+      final int nameAndType =
+          entry(
+              "N" + name + ":" + type,
+              12,
+              () -> {
+                out.writeShort(nameIndex);
+                out.writeShort(typeIndex);
+              });
+      return entry(
+          tag + owner + "." + name + ":" + type,
+          tag,
+          () -> {
+            out.writeShort(ownerIndex);
+            out.writeShort(nameAndType);
+          });
+    }
+
+    private int entry(String key, int tag, EntryWriter body) {
+      Integer existing = entries.get(key);
+      if (existing != null) {
+        return existing;
+      }
+      try {
+        out.writeByte(tag);
+        body.write();
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      entries.put(key, count);
+      return count++;
+    }
+
+    void writeTo(DataOutputStream target) throws IOException {
+      target.writeShort(count);
+      target.write(bytes.toByteArray());
+    }
+
+    private interface EntryWriter {
+      void write() throws IOException;
+    }
+  }
+}
@@ -1,42 +1,438 @@
 package advent;
 
-import java.util.*;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.LongConsumer;
+import java.util.function.LongSupplier;
 
 public class ShipComputer {
-  private static final int[] POWERS_OF_TEN = {1, 10, 100, 1000, 10000, 100000};
+  // Decoded instructions pack the opcode into the low byte and each parameter mode into a nibble
+  // above it. Zero marks an address which has not been decoded (opcode 0 is never valid anyway).
+  static final int OPCODE_MASK = 0xFF;
+  private static final int MODE_SHIFT = 8;
+  private static final int MODE_BITS = 4;
+  private static final int MODE_MASK = (1 << MODE_BITS) - 1;
 
-  private final Map<Long, Long> memory;
+  private static final int CHECKPOINT_MAGIC = 0x4943_434B; // "ICCK"
+  private static final int CHECKPOINT_VERSION = 1;
+  private static final int CHECKPOINT_BUFFER_SIZE = 1 << 16;
 
-  private long instructionPointer = 0; // Instruction pointer
-  private long relativeBase = 0;
+  // Results of executing a single instruction
+  static final int RUNNING = 0;
+  static final int AWAITING_INPUT = 1;
+  static final int HALTED = 2;
+  static final int OUT_OF_BUDGET = 3; // Only returned by ShipIntTier
 
-  private final Queue<Long> input = new ArrayDeque<>();
-  private final Queue<Long> output = new ArrayDeque<>();
+  /** Why {@link #execute(long)} stopped. */
+  public enum Outcome {
+    /** Waiting for input. Execution can resume once input has been queued. */
+    AWAITING_INPUT,
+    /** The program has terminated. */
+    HALTED,
+    /** The instruction budget ran out. Execution can resume right away. */
+    OUT_OF_BUDGET,
+    /**
+     * The program returned to an earlier state without consuming input in between, so it would
+     * never stop on its own (see {@link ShipLoopDetector}).
+     */
+    LOOPING
+  }
+
+  final ShipMemory memory;
+  private int[] decoded; // Decoded instruction cache, covering the loaded program image
+  // Set once decoded is shared with a fork. Lazily decoding into it is fine even so, as the
+  // sharers hold the same code, but any write to that code takes a private copy first.
+  private boolean decodedShared = false;
+  private int[] initialDecoded; // The cache as the optimizer left it, for reset() to restore
+  private int[] fusionGuards; // See ShipOptimizer; null if nothing was fused
+  ShipCompiler compiler; // Only present once compilation has been enabled
+  private ShipProfiler profiler; // Only present once profiling has been enabled
+  private ShipRecorder recorder; // Only present once recording has been enabled
+  private ShipLoopDetector loopDetector; // Only present once loop detection has been enabled
+  private ShipIntTier intTier; // Only present once the int tier has been enabled
+  private boolean intMode = false; // Whether the int tier currently holds memory
+
+  long instructionPointer = 0; // Instruction pointer
+  long relativeBase = 0;
+  // Where reset() restarts: the start of the program, or wherever readState() picked up
+  private long startInstructionPointer = 0;
+  private long startRelativeBase = 0;
+  long budget = Long.MAX_VALUE; // Instructions left to run in the current execute() call
+
+  private final LongChannel input = new LongChannel();
+  private final LongChannel output = new LongChannel();
+  private LongSupplier inputSource; // Consulted once queued input runs out, if present
+  private LongConsumer outputSink; // Replaces the output queue, if present
 
   public ShipComputer(int[] program) {
-    ;
-    memory = new HashMap<>(program.length);
-    for (int i = 0; i < program.length; i++) {
-      memory.put((long) i, (long) program[i]);
-    }
+    this(new ShipMemory(program), program.length);
   }
 
   public ShipComputer(long[] program) {
-    memory = new HashMap<>(program.length);
-    for (int i = 0; i < program.length; i++) {
-      memory.put((long) i, program[i]);
+    this(new ShipMemory(program), program.length);
+  }
+
+  public ShipComputer(ProgramImage image) {
+    this(ShipMemory.ofRom(image.values()), image.length());
+  }
+
+  private ShipComputer(ShipMemory memory, int codeSize) {
+    this.memory = memory;
+    optimize(codeSize);
+  }
+
+  /**
+   * Resumes a program mid-run. The optimizer isn't run: it analyzes the program from address 0
+   * as loaded, and neither holds for memory the program has already been running on.
+   */
+  private ShipComputer(
+      ShipMemory memory, int codeSize, long instructionPointer, long relativeBase) {
+    this.memory = memory;
+    decoded = new int[codeSize];
+    initialDecoded = new int[codeSize];
+    this.instructionPointer = startInstructionPointer = instructionPointer;
+    this.relativeBase = startRelativeBase = relativeBase;
+  }
+
+  private ShipComputer(ShipComputer parent) {
+    memory = parent.memory.fork();
+    decoded = parent.decoded;
+    decodedShared = parent.decodedShared = true;
+    initialDecoded = parent.initialDecoded; // Never modified, so can be shared
+    fusionGuards = parent.fusionGuards; // Likewise
+    instructionPointer = parent.instructionPointer;
+    relativeBase = parent.relativeBase;
+    startInstructionPointer = parent.startInstructionPointer;
+    startRelativeBase = parent.startRelativeBase;
+    input.addAll(parent.input);
+    output.addAll(parent.output);
+    if (parent.compiler != null) {
+      compiler = parent.compiler.fork(this);
+    }
+    if (parent.intTier != null) {
+      intTier = parent.intTier.copy();
+      intMode = parent.intMode;
+    }
+  }
+
+  /**
+   * Returns an independent computer in exactly the same state as this one, including any queued
+   * input and output (but not its input source or output sink). Memory is shared copy-on-write, so
+   * forking is cheap and each side only pays for the memory it goes on to modify. The same goes
+   * for decoded instructions and for any compiled code, which the fork doesn't compile again.
+   */
+  public ShipComputer fork() {
+    return new ShipComputer(this);
+  }
+
+  private void optimize(int codeSize) {
+    decoded = new int[codeSize];
+    decodedShared = false;
+    fusionGuards = ShipOptimizer.optimize(memory, decoded);
+    initialDecoded = decoded.clone();
+  }
+
+  /**
+   * Puts this computer back in the state it was constructed in, ready to run the same program
+   * again: memory is restored (touching only the cells the program wrote, see {@link
+   * ShipMemory#reset()}), the registers are zeroed and queued input and output are discarded. Input
+   * sources, output sinks and any compiler or profiler stay in place.
+   *
+   * <p>A computer recreated by {@link #readState} or {@link #restore} doesn't know the program it
+   * was started with, so it resets to the memory and registers it was recreated with instead.
+   */
+  public void reset() {
+    if (recorder != null) {
+      throw new IllegalStateException("Cannot reset while recording");
+    }
+    for (int cell = memory.nextDirtyCell(0);
+        cell >= 0 && cell < decoded.length;
+        cell = memory.nextDirtyCell(cell + 1)) {
+      unshareDecoded();
+      decoded[cell] = initialDecoded[cell];
+      if (fusionGuards != null && fusionGuards[cell] != 0) {
+        final int fused = fusionGuards[cell] - 1;
+        decoded[fused] = initialDecoded[fused];
+      }
+      if (compiler != null) {
+        compiler.onWrite(cell); // Drops anything compiled from code the program wrote
+      }
+    }
+    memory.reset();
+    if (loopDetector != null) {
+      loopDetector.reset(memory);
+    }
+
+    instructionPointer = startInstructionPointer;
+    relativeBase = startRelativeBase;
+    input.clear();
+    output.clear();
+    enterIntTier();
+  }
+
+  /**
+   * Like {@link #reset()}, but loads the given program instead. Reusing a computer for the same
+   * program it already has is as cheap as {@link #reset()}; a different program costs about as much
+   * as constructing a new computer.
+   */
+  public void reset(long[] program) {
+    if (memory.isLoaded(program) && startInstructionPointer == 0 && startRelativeBase == 0) {
+      reset();
+      return;
+    }
+    if (recorder != null) {
+      throw new IllegalStateException("Cannot reset while recording");
+    }
+
+    memory.reset(program);
+    optimize(program.length);
+    if (compiler != null) {
+      compiler = new ShipCompiler(this, decoded.length);
+    }
+    if (loopDetector != null) {
+      loopDetector.reset(memory);
+    }
+    if (intTier != null) {
+      intTier.load(memory.rom());
+    }
+    instructionPointer = startInstructionPointer = 0;
+    relativeBase = startRelativeBase = 0;
+    input.clear();
+    output.clear();
+    enterIntTier();
+  }
+
+  public void reset(ProgramImage image) {
+    reset(image.values());
+  }
+
+  /**
+   * Writes the complete state of this computer (memory, registers and queued input and output) so
+   * that {@link #readState} can recreate it. Input sources, output sinks and any compiler, profiler
+   * or recorder are not included.
+   */
+  public void writeState(DataOutput out) throws IOException {
+    leaveIntTier();
+    out.writeInt(decoded.length);
+    out.writeLong(instructionPointer);
+    out.writeLong(relativeBase);
+    writeChannel(out, input);
+    writeChannel(out, output);
+    memory.writeTo(out);
+  }
+
+  /**
+   * Recreates a computer from the state written by {@link #writeState}. The memory it is recreated
+   * with is also what {@link #reset()} goes back to.
+   */
+  public static ShipComputer readState(DataInput in) throws IOException {
+    final int codeSize = in.readInt();
+    final long instructionPointer = in.readLong();
+    final long relativeBase = in.readLong();
+    long[] input = readChannel(in);
+    long[] output = readChannel(in);
+
+    ShipComputer computer =
+        new ShipComputer(ShipMemory.readFrom(in), codeSize, instructionPointer, relativeBase);
+    for (long value : input) {
+      computer.input.add(value);
+    }
+    for (long value : output) {
+      computer.output.add(value);
+    }
+    return computer;
+  }
+
+  /**
+   * Saves the complete state of this computer to a file, so that {@link #restore} can resume it
+   * later, e.g. after a restart. The file is a small versioned header followed by {@link
+   * #writeState the state}. It is streamed straight to disk, written to a temporary file first and
+   * then moved into place, so an interrupted checkpoint never replaces a good one.
+   */
+  public void checkpoint(Path path) throws IOException {
+    Path directory = path.toAbsolutePath().getParent();
+    Path temporary = Files.createTempFile(directory, path.getFileName().toString(), ".tmp");
+    try {
+      try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE);
+          DataOutputStream out =
+              new DataOutputStream(
+                  new BufferedOutputStream(
+                      Channels.newOutputStream(channel), CHECKPOINT_BUFFER_SIZE))) {
+        out.writeInt(CHECKPOINT_MAGIC);
+        out.writeInt(CHECKPOINT_VERSION);
+        writeState(out);
+      }
+      Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+  }
+
+  /**
+   * Recreates a computer from a file written by {@link #checkpoint}. As with {@link #readState},
+   * {@link #reset()} then goes back to the checkpoint.
+   */
+  public static ShipComputer restore(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        DataInputStream in =
+            new DataInputStream(
+                new BufferedInputStream(
+                    Channels.newInputStream(channel), CHECKPOINT_BUFFER_SIZE))) {
+      if (in.readInt() != CHECKPOINT_MAGIC) {
+        throw new IOException("Not an Intcode checkpoint: " + path);
+      }
+      final int version = in.readInt();
+      if (version != CHECKPOINT_VERSION) {
+        throw new IOException("Unsupported checkpoint version " + version + ": " + path);
+      }
+      return readState(in);
+    }
+  }
+
+  private static void writeChannel(DataOutput out, LongChannel channel) throws IOException {
+    out.writeInt(channel.size());
+    for (int i = 0; i < channel.size(); i++) {
+      out.writeLong(channel.get(i));
+    }
+  }
+
+  private static long[] readChannel(DataInput in) throws IOException {
+    final int size = in.readInt();
+    if (size < 0) {
+      throw new IOException("Corrupt queue size: " + size);
     }
+    long[] values = new long[size];
+    for (int i = 0; i < size; i++) {
+      values[i] = in.readLong();
+    }
+    return values;
   }
 
   public long readMemory(long index) {
-    if (index < 0) {
-      throw new ArrayIndexOutOfBoundsException(
-          "Cannot read memory at negative positions: " + index);
+    if (intMode && index >= 0 && index < intTier.size()) {
+      return intTier.read((int) index);
+    }
+    return memory.read(index);
+  }
+
+  /**
+   * Enables the compiling tier for this computer: frequently executed basic blocks are translated
+   * to JVM bytecode (see {@link ShipCompiler}). Results are identical to plain interpretation.
+   */
+  public void enableCompiler() {
+    leaveIntTier();
+    if (compiler == null) {
+      compiler = new ShipCompiler(this, decoded.length);
+    }
+  }
+
+  /**
+   * Enables profiling for this computer, returning the profiler which will collect statistics from
+   * every subsequent {@link #execute()} call. Profiling has no cost until it is enabled.
+   */
+  public ShipProfiler enableProfiler() {
+    if (recorder != null) {
+      throw new IllegalStateException("Cannot profile while recording");
+    }
+    leaveIntTier();
+    if (profiler == null) {
+      profiler = new ShipProfiler(decoded.length);
+    }
+    return profiler;
+  }
+
+  public ShipProfiler getProfiler() {
+    return profiler;
+  }
+
+  /**
+   * Enables loop detection for this computer, returning the detector which keeps a fingerprint of
+   * the machine state up to date from then on (see {@link ShipLoopDetector}). {@link
+   * #execute(long)} stops with {@link Outcome#LOOPING} once it sees a program livelock.
+   */
+  public ShipLoopDetector enableLoopDetector() {
+    leaveIntTier();
+    if (loopDetector == null) {
+      loopDetector = new ShipLoopDetector(memory);
+    }
+    return loopDetector;
+  }
+
+  public ShipLoopDetector getLoopDetector() {
+    return loopDetector;
+  }
+
+  /**
+   * Enables the int tier for this computer (see {@link ShipIntTier}): memory is kept as ints and
+   * arithmetic is done in ints for as long as the program's values fit, falling back to the usual
+   * long tier the moment they don't. Results are identical either way.
+   *
+   * <p>The int tier is used from the start of the program, i.e. right away for a computer which
+   * hasn't written any memory yet and otherwise from the next {@link #reset()}. It stays out of the
+   * way of every other tier and hook: enabling the compiler, profiling, recording or loop detection
+   * leaves the int tier until the next reset, and so does {@link #writeState}.
+   *
+   * @return whether the int tier is now in use.
+   */
+  public boolean enableIntTier() {
+    if (intTier == null) {
+      intTier = new ShipIntTier(memory.rom());
+      if (memory.isPristine()) {
+        enterIntTier();
+      }
     }
-    if (memory.containsKey(index)) {
-      return memory.get(index);
+    return intMode;
+  }
+
+  /** Switches to the int tier if it is enabled and nothing else needs the long memory. */
+  private void enterIntTier() {
+    intMode =
+        intTier != null
+            && compiler == null
+            && profiler == null
+            && recorder == null
+            && loopDetector == null
+            && !memory.hasRomPages()
+            && (int) relativeBase == relativeBase
+            && (int) instructionPointer == instructionPointer
+            && intTier.reset();
+  }
+
+  /** Moves memory from the int tier to the long one, if the int tier currently holds it. */
+  void leaveIntTier() {
+    if (intMode) {
+      intMode = false;
+      intTier.spill(this);
     }
-    return 0;
+  }
+
+  /**
+   * Starts recording an execution trace of this computer to the given stream, with a checkpoint of
+   * the full state every {@code checkpointInterval} instructions (see {@link ShipRecorder}). Like
+   * profiling, recording bypasses superinstructions and compiled code.
+   */
+  public ShipRecorder enableRecorder(OutputStream out, long checkpointInterval) throws IOException {
+    if (profiler != null) {
+      throw new IllegalStateException("Cannot record while profiling");
+    }
+    if (recorder != null) {
+      throw new IllegalStateException("Already recording");
+    }
+    leaveIntTier();
+    recorder = new ShipRecorder(out, checkpointInterval);
+    return recorder;
   }
 
   public void addInput(long value) {
@@ -55,6 +451,52 @@ public class ShipComputer {
     return output.size();
   }
 
+  /** Returns whether an input instruction would go ahead now rather than wait. */
+  boolean hasInputReady() {
+    return !input.isEmpty() || inputSource != null;
+  }
+
+  /** Returns the queue of pending input, for callers that want to feed it directly. */
+  public LongChannel getInput() {
+    return input;
+  }
+
+  /** Returns the queue of output produced so far, for callers that want to drain it directly. */
+  public LongChannel getOutput() {
+    return output;
+  }
+
+  /** Limits the sparse memory this computer may allocate (see {@link ShipMemory#setPageLimit}). */
+  public void setPageLimit(int pageLimit) {
+    memory.setPageLimit(pageLimit);
+  }
+
+  /**
+   * Sets a source which is asked for input whenever the program needs some and none is queued, so
+   * that the program never suspends for input. {@code null} restores the default behaviour.
+   */
+  public void setInputSource(LongSupplier inputSource) {
+    this.inputSource = inputSource;
+  }
+
+  /**
+   * Sets a sink which receives every value as it is output, instead of it being queued. {@code
+   * null} restores the default behaviour.
+   */
+  public void setOutputSink(LongConsumer outputSink) {
+    this.outputSink = outputSink;
+  }
+
+  /**
+   * Executes the program with the given input source and output sink (see {@link
+   * #setInputSource} and {@link #setOutputSink}), which stay in place afterwards.
+   */
+  public boolean execute(LongSupplier inputSource, LongConsumer outputSink) {
+    setInputSource(inputSource);
+    setOutputSink(outputSink);
+    return execute();
+  }
+
   /**
    * Executes the program in memory until the end of the program or until an input instruction for
    * which no input is queued. In the latter case, the program can be resumed from the same position
@@ -64,101 +506,304 @@ public class ShipComputer {
    *     terminated.
    */
   public boolean execute() {
+    if (profiler != null) {
+      return profiler.execute(this);
+    }
+    if (recorder != null) {
+      return recorder.execute(this);
+    }
+
+    budget = Long.MAX_VALUE;
+    if (intMode) {
+      final int state = intTier.execute(this, inputSource, outputSink);
+      if (state != RUNNING) {
+        return state == AWAITING_INPUT;
+      }
+    }
+    while (instructionPointer >= 0) {
+      final int state = step(decode(instructionPointer));
+      if (state != RUNNING) {
+        return state == AWAITING_INPUT;
+      }
+    }
+
+    throw new RuntimeException("Instruction pointer out of bounds");
+  }
+
+  /**
+   * Like {@link #execute()}, but stops after roughly {@code maxInstructions} instructions, so that
+   * a runaway program can't hold on to the calling thread. Compiled blocks are charged in one go,
+   * so the budget can be overrun by up to one block. If loop detection is enabled, a livelocked
+   * program is stopped as soon as it is found out instead.
+   *
+   * <p>Not available while profiling or recording.
+   */
+  public Outcome execute(long maxInstructions) {
+    if (profiler != null || recorder != null) {
+      throw new IllegalStateException("Cannot limit execution while profiling or recording");
+    }
+
+    budget = maxInstructions;
+    if (intMode) {
+      final int state = intTier.execute(this, inputSource, outputSink);
+      if (state != RUNNING) {
+        return state == AWAITING_INPUT
+            ? Outcome.AWAITING_INPUT
+            : state == HALTED ? Outcome.HALTED : Outcome.OUT_OF_BUDGET;
+      }
+    }
     while (instructionPointer >= 0) {
-      int opCode = (int) (readMemory(instructionPointer) % 100);
-
-      switch (opCode) {
-        case 1: // ADD
-          writeParameter(2, readParameter(0) + readParameter(1));
-          instructionPointer += 4;
-          break;
-        case 2: // MULTIPLY
-          writeParameter(2, readParameter(0) * readParameter(1));
-          instructionPointer += 4;
-          break;
-        case 3: // INPUT
-          if (input.isEmpty()) {
-            return true;
-          }
-          writeParameter(0, input.remove());
-          instructionPointer += 2;
-          break;
-        case 4: // OUT
-          output.add(readParameter(0));
-          instructionPointer += 2;
-          break;
-        case 5: // JUMP IF TRUE
-          if (readParameter(0) != 0) {
-            instructionPointer = readParameter(1);
-          } else {
-            instructionPointer += 3;
-          }
-          break;
-        case 6: // JUMP IF FALSE
-          if (readParameter(0) == 0) {
-            instructionPointer = readParameter(1);
-          } else {
-            instructionPointer += 3;
-          }
-          break;
-        case 7: // LESS THAN
-          writeParameter(2, readParameter(0) < readParameter(1) ? 1 : 0);
-          instructionPointer += 4;
-          break;
-        case 8: // EQUALS
-          writeParameter(2, readParameter(0) == readParameter(1) ? 1 : 0);
-          instructionPointer += 4;
-          break;
-        case 9: // ADJUST RELATIVE BASE
-          relativeBase += readParameter(0);
-          instructionPointer += 2;
-          break;
-        case 99: // END --- terminates program
-          return false;
-        default:
-          throw new RuntimeException("Unexpected opcode: " + readMemory(instructionPointer));
+      if (budget <= 0) {
+        return Outcome.OUT_OF_BUDGET;
+      }
+      final int instruction = decode(instructionPointer);
+      final int state = step(instruction);
+      if (state != RUNNING) {
+        return state == AWAITING_INPUT ? Outcome.AWAITING_INPUT : Outcome.HALTED;
+      }
+      budget--;
+
+      if (loopDetector != null) {
+        final int opCode = instruction & OPCODE_MASK;
+        if (opCode == 3) {
+          loopDetector.onInput();
+        } else if (opCode == 4 && loopDetector.onOutput(this)) {
+          return Outcome.LOOPING;
+        }
       }
     }
 
     throw new RuntimeException("Instruction pointer out of bounds");
   }
 
-  private void writeParameter(int index, long value) {
-    final long parameter = readMemory(instructionPointer + index + 1);
-    final int mode = getMode(readMemory(instructionPointer), index);
+  /**
+   * Executes the given (decoded) instruction, which must be the one at the instruction pointer.
+   * Returns {@link #RUNNING}, {@link #AWAITING_INPUT} (in which case nothing happened) or {@link
+   * #HALTED}.
+   */
+  int step(int instruction) {
+    switch (instruction & OPCODE_MASK) {
+      case 1: // ADD
+        writeParameter(
+            instruction, 2, readParameter(instruction, 0) + readParameter(instruction, 1));
+        instructionPointer += 4;
+        return RUNNING;
+      case 2: // MULTIPLY
+        writeParameter(
+            instruction, 2, readParameter(instruction, 0) * readParameter(instruction, 1));
+        instructionPointer += 4;
+        return RUNNING;
+      case 3: // INPUT
+        if (!input.isEmpty()) {
+          writeParameter(instruction, 0, input.remove());
+        } else if (inputSource != null) {
+          writeParameter(instruction, 0, inputSource.getAsLong());
+        } else {
+          return AWAITING_INPUT;
+        }
+        instructionPointer += 2;
+        return RUNNING;
+      case 4: // OUT
+        if (outputSink != null) {
+          outputSink.accept(readParameter(instruction, 0));
+        } else {
+          output.add(readParameter(instruction, 0));
+        }
+        instructionPointer += 2;
+        return RUNNING;
+      case 5: // JUMP IF TRUE
+        if (readParameter(instruction, 0) != 0) {
+          jump(readParameter(instruction, 1));
+        } else {
+          instructionPointer += 3;
+        }
+        return RUNNING;
+      case 6: // JUMP IF FALSE
+        if (readParameter(instruction, 0) == 0) {
+          jump(readParameter(instruction, 1));
+        } else {
+          instructionPointer += 3;
+        }
+        return RUNNING;
+      case 7: // LESS THAN
+        writeParameter(
+            instruction,
+            2,
+            readParameter(instruction, 0) < readParameter(instruction, 1) ? 1 : 0);
+        instructionPointer += 4;
+        return RUNNING;
+      case 8: // EQUALS
+        writeParameter(
+            instruction,
+            2,
+            readParameter(instruction, 0) == readParameter(instruction, 1) ? 1 : 0);
+        instructionPointer += 4;
+        return RUNNING;
+      case 9: // ADJUST RELATIVE BASE
+        relativeBase += readParameter(instruction, 0);
+        instructionPointer += 2;
+        return RUNNING;
+      case ShipOptimizer.LESS_THAN_JUMP_IF_TRUE:
+      case ShipOptimizer.LESS_THAN_JUMP_IF_FALSE:
+      case ShipOptimizer.EQUALS_JUMP_IF_TRUE:
+      case ShipOptimizer.EQUALS_JUMP_IF_FALSE:
+        compareAndJump(instruction);
+        return RUNNING;
+      case ShipOptimizer.INCREMENT:
+        increment(instruction);
+        instructionPointer += 4;
+        return RUNNING;
+      case 99: // END --- terminates program
+        return HALTED;
+      default:
+        throw new RuntimeException("Unexpected opcode: " + memory.read(instructionPointer));
+    }
+  }
+
+  /** Superinstruction for a LESS THAN or EQUALS followed by a jump on the result. */
+  private void compareAndJump(int instruction) {
+    final int opCode = instruction & OPCODE_MASK;
+    final long first = readParameter(instruction, 0);
+    final long second = readParameter(instruction, 1);
+    final boolean result =
+        opCode == ShipOptimizer.LESS_THAN_JUMP_IF_TRUE
+                || opCode == ShipOptimizer.LESS_THAN_JUMP_IF_FALSE
+            ? first < second
+            : first == second;
+    writeParameter(instruction, 2, result ? 1 : 0);
+
+    final boolean jumpIfTrue =
+        opCode == ShipOptimizer.LESS_THAN_JUMP_IF_TRUE
+            || opCode == ShipOptimizer.EQUALS_JUMP_IF_TRUE;
+    instructionPointer += 4;
+    if (result == jumpIfTrue) {
+      jump(resolveParameter(getMode(instruction, 3), memory.read(instructionPointer + 2)));
+    } else {
+      instructionPointer += 3;
+    }
+  }
+
+  /** Superinstruction for adding an immediate value to a cell in place. */
+  private void increment(int instruction) {
+    final int counter = getMode(instruction, 0) == 1 ? 1 : 0;
+    final long parameter = memory.read(instructionPointer + 3);
+    final long address = getMode(instruction, 2) == 0 ? parameter : relativeBase + parameter;
+    writeMemory(address, memory.read(address) + memory.read(instructionPointer + 2 - counter));
+  }
+
+  private void jump(long target) {
+    // Compiled code is bypassed while profiling or recording so every instruction is accounted for
+    if (compiler == null || profiler != null || recorder != null) {
+      instructionPointer = target;
+    } else {
+      instructionPointer = compiler.enter(target);
+    }
+  }
+
+  /**
+   * Returns the decoded form of the instruction at the given address. Decoding happens lazily the
+   * first time an address is executed; {@link #writeParameter} drops the cached entry whenever a
+   * program writes over its own code.
+   */
+  int decode(long address) {
+    if (address < decoded.length) {
+      int instruction = decoded[(int) address];
+      if (instruction == 0) {
+        instruction = decodeInstruction(memory.read(address));
+        decoded[(int) address] = instruction;
+      }
+      return instruction;
+    }
+    return decodeInstruction(memory.read(address));
+  }
+
+  static int decodeInstruction(long instruction) {
+    if (instruction < 0) {
+      return 0; // Reported as an unexpected opcode
+    }
+    int modes = (int) ((instruction / 100) % 1000);
+    return (int) (instruction % 100)
+        | ((modes % 10) << MODE_SHIFT)
+        | (((modes / 10) % 10) << (MODE_SHIFT + MODE_BITS))
+        | ((modes / 100) << (MODE_SHIFT + 2 * MODE_BITS));
+  }
+
+  private void writeParameter(int instruction, int index, long value) {
+    writeMemory(parameterAddress(instruction, index), value);
+  }
+
+  /** Returns the address that the given output parameter of the current instruction refers to. */
+  long parameterAddress(int instruction, int index) {
+    final long parameter = memory.read(instructionPointer + index + 1);
+    final int mode = getMode(instruction, index);
 
     switch (mode) {
       case 0: // Position mode
-        memory.put(parameter, value);
-        return;
+        return parameter;
       case 1: // Immediate mode
         throw new RuntimeException(
             "Parameters describing output locations must not be in immediate mode");
       case 2: // Relative mode
-        memory.put(relativeBase + parameter, value);
-        return;
+        return relativeBase + parameter;
       default:
         throw new RuntimeException("Unknown parameter mode: " + mode);
     }
   }
 
-  private long readParameter(int index) {
-    final long parameter = readMemory(instructionPointer + index + 1);
-    final int mode = getMode(readMemory(instructionPointer), index);
+  /** Writes to memory, dropping any cached or compiled code derived from the written cell. */
+  public void writeMemory(long address, long value) {
+    if (intMode) {
+      if (intTier.write(address, value)) {
+        return;
+      }
+      leaveIntTier();
+    }
+    if (loopDetector != null) {
+      loopDetector.onWrite(address, memory.read(address), value);
+    }
+    memory.write(address, value);
+    if (address < decoded.length) {
+      unshareDecoded();
+      decoded[(int) address] = 0;
+      if (fusionGuards != null && fusionGuards[(int) address] != 0) {
+        decoded[fusionGuards[(int) address] - 1] = 0; // Fall back to the unfused instructions
+      }
+    }
+    if (compiler != null) {
+      compiler.onWrite(address);
+    }
+  }
+
+  private void unshareDecoded() {
+    if (decodedShared) {
+      decoded = decoded.clone();
+      decodedShared = false;
+    }
+  }
+
+  long readParameter(int instruction, int index) {
+    final long parameter = memory.read(instructionPointer + index + 1);
+    return resolveParameter(getMode(instruction, index), parameter);
+  }
 
+  private long resolveParameter(int mode, long parameter) {
     switch (mode) {
       case 0: // Position mode
-        return readMemory(parameter);
+        return memory.read(parameter);
       case 1: // Immediate mode
         return parameter;
       case 2: // Relative mode
-        return readMemory(relativeBase + parameter);
+        return memory.read(relativeBase + parameter);
       default:
         throw new RuntimeException("Unknown parameter mode: " + mode);
     }
   }
 
-  private static int getMode(long operation, int parameterIndex) {
-    return (int) (((operation / 100) / POWERS_OF_TEN[parameterIndex]) % 10);
+  static int getMode(int instruction, int parameterIndex) {
+    return (instruction >>> modeShift(parameterIndex)) & MODE_MASK;
+  }
+
+  static int modeShift(int parameterIndex) {
+    return MODE_SHIFT + MODE_BITS * parameterIndex;
   }
 }
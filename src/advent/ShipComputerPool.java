@@ -0,0 +1,59 @@
+package advent;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of {@link ShipComputer}s loaded with the same program, for callers that run it
+ * many times over. Borrowing takes an idle computer if there is one (or creates a new one), and
+ * returning a computer {@link ShipComputer#reset() resets} it for the next borrower, so a warm pool
+ * runs the program again and again without allocating memory for it.
+ *
+ * <p>Thread-safe. Neither borrowing nor returning ever blocks: the pool creates computers on
+ * demand and simply drops returned ones once {@code capacity} are already idle.
+ */
+public class ShipComputerPool {
+  private final ProgramImage program;
+  private final BlockingQueue<ShipComputer> idle;
+  private final AtomicInteger created = new AtomicInteger();
+
+  public ShipComputerPool(ProgramImage program, int capacity) {
+    this.program = program;
+    idle = new ArrayBlockingQueue<>(capacity);
+  }
+
+  public ProgramImage getProgram() {
+    return program;
+  }
+
+  /** Returns a computer ready to run the program from the start. */
+  public ShipComputer borrow() {
+    ShipComputer computer = idle.poll();
+    if (computer == null) {
+      created.incrementAndGet();
+      computer = new ShipComputer(program);
+    }
+    return computer;
+  }
+
+  /**
+   * Hands a computer back to the pool. It must not be used again by the caller. Any input source
+   * or output sink is removed, but enabled tiers (e.g. the compiler) are kept.
+   */
+  public void release(ShipComputer computer) {
+    computer.setInputSource(null);
+    computer.setOutputSink(null);
+    computer.reset(program);
+    idle.offer(computer);
+  }
+
+  /** Returns the number of computers the pool has had to create so far. */
+  public int getCreatedCount() {
+    return created.get();
+  }
+
+  public int getIdleCount() {
+    return idle.size();
+  }
+}
@@ -0,0 +1,858 @@
+package advent;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.function.LongUnaryOperator;
+import java.util.function.UnaryOperator;
+
+/**
+ * Differential fuzzer for the Intcode engines. Generates random programs (self-modifying code,
+ * relative addressing, loops, input starvation and cells patched from outside before running
+ * included), runs each one on a deliberately plain reference interpreter and on every engine
+ * configuration, and compares what they output, where they stopped to wait for input and what they
+ * left in memory. Any mismatch is shrunk to a minimal program and reported.
+ *
+ * <p>Usage: {@code ShipFuzzer [cases] [seed]}. Exits with status 1 if any engine disagreed.
+ */
+public class ShipFuzzer {
+  private static final int DEFAULT_CASES = 10_000;
+
+  // Number of parameters taken by each opcode
+  private static final int[] PARAMETER_COUNTS = {0, 3, 3, 1, 1, 2, 2, 3, 3, 1};
+  private static final int[] OPCODES = {1, 2, 3, 4, 5, 6, 7, 8, 9};
+  private static final int[] OPCODE_WEIGHTS = {12, 8, 6, 10, 8, 8, 8, 8, 5};
+
+  // Cases whose reference run takes longer than this are assumed not to terminate, and skipped
+  private static final long MAX_STEPS = 20_000;
+  // Engines get far more room, so a budget running out means they went astray
+  private static final long ENGINE_BUDGET = 100 * MAX_STEPS;
+  private static final long SLICE = 7; // Budget per execute() call for the sliced engines
+
+  private static final Map<String, Engine> ENGINES = new LinkedHashMap<>();
+
+  // Programs that once broke an engine, run ahead of the random cases
+  private static final List<Case> REGRESSIONS = new ArrayList<>();
+
+  static {
+    ENGINES.put("interpreter", c -> drive(new ShipComputer(c.program), c));
+    ENGINES.put(
+        "compiler",
+        c -> {
+          ShipComputer computer = new ShipComputer(c.program);
+          computer.enableCompiler();
+          return drive(computer, c);
+        });
+    ENGINES.put(
+        "int tier",
+        c -> {
+          ShipComputer computer = new ShipComputer(c.program);
+          computer.enableIntTier();
+          return drive(computer, c);
+        });
+    ENGINES.put(
+        "budget slices",
+        c -> {
+          ShipComputer computer = new ShipComputer(c.program);
+          computer.enableCompiler();
+          return drive(computer, c, ShipFuzzer::executeInSlices, UnaryOperator.identity());
+        });
+    ENGINES.put(
+        "int tier slices",
+        c -> {
+          ShipComputer computer = new ShipComputer(c.program);
+          computer.enableIntTier();
+          return drive(computer, c, ShipFuzzer::executeInSlices, UnaryOperator.identity());
+        });
+    ENGINES.put(
+        "loop detector",
+        c -> {
+          ShipComputer computer = new ShipComputer(c.program);
+          computer.enableLoopDetector();
+          return drive(computer, c);
+        });
+    ENGINES.put(
+        "profiler",
+        c -> {
+          ShipComputer computer = new ShipComputer(c.program);
+          computer.enableProfiler();
+          return drive(computer, c, ShipFuzzer::executeUnlimited, UnaryOperator.identity());
+        });
+    ENGINES.put(
+        "recorder",
+        c -> {
+          ShipComputer computer = new ShipComputer(c.program);
+          try {
+            computer.enableRecorder(OutputStream.nullOutputStream(), 1 + c.program.length);
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+          return drive(computer, c, ShipFuzzer::executeUnlimited, UnaryOperator.identity());
+        });
+    ENGINES.put(
+        "fork",
+        c -> {
+          ShipComputer computer = new ShipComputer(c.program);
+          computer.enableIntTier();
+          return drive(computer, c, ShipFuzzer::execute, ShipComputer::fork);
+        });
+    ENGINES.put(
+        "int tier fork siblings",
+        c -> {
+          ShipComputer computer = new ShipComputer(c.program);
+          computer.enableIntTier();
+          return drive(computer, c, ShipFuzzer::execute, ShipFuzzer::forkAndDiverge);
+        });
+    ENGINES.put(
+        "compiler fork siblings",
+        c -> {
+          ShipComputer computer = new ShipComputer(c.program);
+          computer.enableCompiler();
+          return drive(computer, c, ShipFuzzer::execute, ShipFuzzer::forkAndDiverge);
+        });
+    ENGINES.put(
+        "state round trip",
+        c -> drive(new ShipComputer(c.program), c, ShipFuzzer::execute, ShipFuzzer::roundTrip));
+    ENGINES.put(
+        "state round trip reset",
+        c -> {
+          // A restored computer resets to where it was restored, not to the start of the program
+          ShipComputer computer = new ShipComputer(c.program);
+          computer.enableCompiler();
+          return drive(
+              computer,
+              c,
+              ShipFuzzer::execute,
+              suspended -> {
+                ShipComputer restored = roundTrip(suspended);
+                diverge(restored);
+                restored.reset();
+                return restored;
+              });
+        });
+    ENGINES.put(
+        "reset",
+        c -> {
+          // The second run must not see anything left over from the first
+          ShipComputer computer = new ShipComputer(c.program);
+          computer.enableCompiler();
+          drive(computer, c);
+          computer.reset();
+          return drive(computer, c);
+        });
+    ENGINES.put(
+        "int tier reset",
+        c -> {
+          ShipComputer computer = new ShipComputer(c.program);
+          computer.enableIntTier();
+          drive(computer, c);
+          computer.reset();
+          return drive(computer, c);
+        });
+    ENGINES.put("batch", ShipFuzzer::runBatch);
+
+    // Writes into the operand of a fused jump, which the optimizer had taken to be read-only
+    long[] program = new long[34];
+    System.arraycopy(
+        new long[] {1101, 13, 0, 7, 1101, 5, 0, 100, 109, 0, 1107, 1, 2, 20, 1005, 20, 30, 104, 111,
+            99},
+        0, program, 0, 20);
+    program[30] = 104;
+    program[31] = 222;
+    program[32] = 99;
+    REGRESSIONS.add(new Case(program, new long[0], new long[0][]));
+
+    // Patches the operand of a fused increment from outside
+    REGRESSIONS.add(
+        new Case(
+            new long[] {1001, 9, 1, 9, 4, 9, 99, 0, 0, 5, 100}, new long[] {1, 10}, new long[0][]));
+    // Turns the jump of a fused compare-and-jump from JUMP IF TRUE into JUMP IF FALSE
+    REGRESSIONS.add(
+        new Case(
+            new long[] {
+              1007, 20, 5, 21, 1005, 21, 12, 104, 1, 99, 0, 0, 104, 2, 99, 0, 0, 0, 0, 0, 3, 0
+            },
+            new long[] {4, 1006},
+            new long[0][]));
+  }
+
+  public static void main(String[] args) {
+    final int cases = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_CASES;
+    final long seed = args.length > 1 ? Long.parseLong(args[1]) : System.nanoTime();
+    System.out.println("Fuzzing " + cases + " cases with seed " + seed);
+
+    Random random = new Random(seed);
+    Map<String, Integer> mismatches = new LinkedHashMap<>();
+    int skipped = 0;
+    final long start = System.nanoTime();
+    for (int i = -REGRESSIONS.size(); i < cases; i++) {
+      Case testCase = i < 0 ? REGRESSIONS.get(i + REGRESSIONS.size()) : generate(random);
+      Run expected = runReference(testCase);
+      if (expected == null) {
+        skipped++;
+        continue;
+      }
+
+      for (Map.Entry<String, Engine> engine : ENGINES.entrySet()) {
+        if (compare(expected, run(engine.getValue(), testCase)) != null) {
+          mismatches.merge(engine.getKey(), 1, Integer::sum);
+          report(engine.getKey(), shrink(engine.getValue(), testCase));
+        }
+      }
+    }
+
+    System.out.printf(
+        "Ran %d cases (%d skipped as non-terminating) on %d engines in %.1fs%n",
+        REGRESSIONS.size() + cases - skipped,
+        skipped,
+        ENGINES.size(),
+        (System.nanoTime() - start) / 1e9);
+    if (mismatches.isEmpty()) {
+      System.out.println("No mismatches");
+    } else {
+      System.out.println("Mismatches: " + mismatches);
+      System.exit(1);
+    }
+  }
+
+  /**
+   * A program plus the input it is given: one chunk each time it stops to wait for input. Before
+   * it runs, each patch is written into memory from outside, the way Day 2 sets its noun and verb.
+   */
+  private static class Case {
+    final long[] program;
+    final long[] patches; // Pairs of address and value
+    final long[][] chunks;
+
+    Case(long[] program, long[] patches, long[][] chunks) {
+      this.program = program;
+      this.patches = patches;
+      this.chunks = chunks;
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder builder = new StringBuilder();
+      for (int i = 0; i < program.length; i++) {
+        builder.append(i == 0 ? "" : ",").append(program[i]);
+      }
+      if (patches.length > 0) {
+        builder.append("\n  patches:");
+        for (int i = 0; i < patches.length; i += 2) {
+          builder.append(" [").append(patches[i]).append("] = ").append(patches[i + 1]);
+        }
+      }
+      builder.append("\n  input chunks: ");
+      for (long[] chunk : chunks) {
+        builder.append(Arrays.toString(chunk));
+      }
+      return builder.toString();
+    }
+  }
+
+  /** What a run produced: a trace of outputs and stops, and the memory it ended with. */
+  private static class Run {
+    final List<String> trace = new ArrayList<>();
+    LongUnaryOperator memory;
+    TreeSet<Long> written; // Addresses to compare, only known for the reference
+    long highestAddress; // Highest address read or written, only known for the reference
+
+    boolean failed() {
+      return !trace.isEmpty() && trace.get(trace.size() - 1).startsWith("error");
+    }
+  }
+
+  private interface Engine {
+    /** Returns null if the case is outside what this engine supports. */
+    Run run(Case testCase);
+  }
+
+  private interface Executor {
+    ShipComputer.Outcome execute(ShipComputer computer);
+  }
+
+  /** Runs an engine, recording anything it throws in the trace. */
+  private static Run run(Engine engine, Case testCase) {
+    try {
+      return engine.run(testCase);
+    } catch (RuntimeException e) {
+      Run run = new Run();
+      run.trace.add("error (engine failed outside the program: " + e + ")");
+      return run;
+    }
+  }
+
+  private static Run drive(ShipComputer computer, Case testCase) {
+    return drive(computer, testCase, ShipFuzzer::execute, UnaryOperator.identity());
+  }
+
+  /**
+   * Runs a computer through a case, feeding it the next chunk of input each time it waits. The
+   * computer is passed through {@code onSuspend} at every stop, e.g. to carry on with a copy.
+   */
+  private static Run drive(
+      ShipComputer computer,
+      Case testCase,
+      Executor executor,
+      UnaryOperator<ShipComputer> onSuspend) {
+    Run run = new Run();
+    for (int i = 0; i < testCase.patches.length; i += 2) {
+      computer.writeMemory(testCase.patches[i], testCase.patches[i + 1]);
+    }
+    int chunk = 0;
+    while (true) {
+      ShipComputer.Outcome outcome;
+      try {
+        outcome = executor.execute(computer);
+      } catch (RuntimeException e) {
+        drainOutput(computer.getOutput(), run);
+        run.trace.add("error");
+        break;
+      }
+      drainOutput(computer.getOutput(), run);
+      run.trace.add(stop(outcome, computer.instructionPointer));
+      if (outcome != ShipComputer.Outcome.AWAITING_INPUT || chunk == testCase.chunks.length) {
+        break;
+      }
+
+      computer = onSuspend.apply(computer);
+      for (long value : testCase.chunks[chunk++]) {
+        computer.addInput(value);
+      }
+    }
+
+    final ShipComputer result = computer;
+    run.memory = result::readMemory;
+    return run;
+  }
+
+  private static ShipComputer.Outcome execute(ShipComputer computer) {
+    return computer.execute(ENGINE_BUDGET);
+  }
+
+  private static ShipComputer.Outcome executeUnlimited(ShipComputer computer) {
+    return computer.execute() ? ShipComputer.Outcome.AWAITING_INPUT : ShipComputer.Outcome.HALTED;
+  }
+
+  private static ShipComputer.Outcome executeInSlices(ShipComputer computer) {
+    for (long spent = 0; spent < ENGINE_BUDGET; spent += SLICE) {
+      ShipComputer.Outcome outcome = computer.execute(SLICE);
+      if (outcome != ShipComputer.Outcome.OUT_OF_BUDGET) {
+        return outcome;
+      }
+    }
+    return ShipComputer.Outcome.OUT_OF_BUDGET;
+  }
+
+  /**
+   * Forks the computer, then runs the original on with made-up input so that it writes memory of
+   * its own. The fork carries on, and must not see any of that.
+   */
+  private static ShipComputer forkAndDiverge(ShipComputer computer) {
+    ShipComputer fork = computer.fork();
+    diverge(computer);
+    return fork;
+  }
+
+  /** Runs a computer on with made-up input, so that it writes memory it otherwise wouldn't. */
+  private static void diverge(ShipComputer computer) {
+    for (long value = -2; value <= 2; value++) {
+      computer.addInput(value * 7919);
+    }
+    try {
+      computer.execute(MAX_STEPS);
+    } catch (RuntimeException e) {
+      // Made-up input can make a program fail, which is no concern of whoever comes next
+    }
+  }
+
+  private static ShipComputer roundTrip(ShipComputer computer) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      computer.writeState(new DataOutputStream(bytes));
+      return ShipComputer.readState(
+          new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Runs the case in lane 0 of a batch, next to a lane given different input so that the two
+   * diverge. Only lane 0 is compared, so this checks that lanes don't interfere.
+   */
+  private static Run runBatch(Case testCase) {
+    long[][] otherChunks = new long[testCase.chunks.length][];
+    for (int i = 0; i < otherChunks.length; i++) {
+      otherChunks[i] = Arrays.stream(testCase.chunks[i]).map(value -> value + 1).toArray();
+    }
+    Run expected = runReference(testCase);
+    if (expected == null || expected.highestAddress >= ShipBatch.MIN_CELL_LIMIT) {
+      return null; // Batches have no sparse memory, so this is out of their reach
+    }
+    Case other = new Case(testCase.program, testCase.patches, otherChunks);
+    Run otherRun = runReference(other);
+    if (otherRun == null
+        || otherRun.failed()
+        || otherRun.highestAddress >= ShipBatch.MIN_CELL_LIMIT) {
+      other = testCase; // The other lane must neither hang nor fail, or lane 0 wouldn't finish
+    }
+
+    ShipBatch batch = new ShipBatch(testCase.program, 2);
+    for (int i = 0; i < testCase.patches.length; i += 2) {
+      batch.writeMemory(0, testCase.patches[i], testCase.patches[i + 1]);
+      batch.writeMemory(1, testCase.patches[i], testCase.patches[i + 1]);
+    }
+    Run run = new Run();
+    int chunk = 0;
+    int otherChunk = 0;
+    while (true) {
+      try {
+        batch.execute();
+      } catch (RuntimeException e) {
+        drainOutput(batch.getOutput(0), run);
+        run.trace.add("error");
+        break;
+      }
+      drainOutput(batch.getOutput(0), run);
+      final boolean waiting = batch.isAwaitingInput(0);
+      run.trace.add(
+          stop(
+              waiting ? ShipComputer.Outcome.AWAITING_INPUT : ShipComputer.Outcome.HALTED,
+              batch.getInstructionPointer(0)));
+      if (!waiting || chunk == testCase.chunks.length) {
+        break;
+      }
+
+      for (long value : testCase.chunks[chunk++]) {
+        batch.addInput(0, value);
+      }
+      if (batch.isAwaitingInput(1) && otherChunk < other.chunks.length) {
+        for (long value : other.chunks[otherChunk++]) {
+          batch.addInput(1, value);
+        }
+      }
+    }
+
+    run.memory = address -> batch.readMemory(0, address);
+    return run;
+  }
+
+  private static void drainOutput(LongChannel output, Run run) {
+    while (!output.isEmpty()) {
+      run.trace.add("out " + output.remove());
+    }
+  }
+
+  private static String stop(ShipComputer.Outcome outcome, long instructionPointer) {
+    return outcome.toString().toLowerCase() + " at " + instructionPointer;
+  }
+
+  /** Returns a description of the first difference between two runs, or null if they agree. */
+  private static String compare(Run expected, Run actual) {
+    if (actual == null) {
+      return null;
+    }
+    if (!expected.trace.equals(actual.trace)) {
+      return "expected " + expected.trace + "\n  but got  " + actual.trace;
+    }
+    if (expected.failed()) {
+      return null; // How far a failing instruction got before failing is left unspecified
+    }
+    for (long address : expected.written) {
+      final long value = expected.memory.applyAsLong(address);
+      final long actualValue = actual.memory.applyAsLong(address);
+      if (value != actualValue) {
+        return "expected memory[" + address + "] = " + value + " but got " + actualValue;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Shrinks a failing case as far as possible while the engine still disagrees with the reference:
+   * truncating the program, dropping input, and removing or simplifying one cell at a time.
+   */
+  private static Case shrink(Engine engine, Case testCase) {
+    boolean progress = true;
+    while (progress) {
+      progress = false;
+      for (Case candidate : candidates(testCase)) {
+        if (fails(engine, candidate)) {
+          testCase = candidate;
+          progress = true;
+          break;
+        }
+      }
+    }
+    return testCase;
+  }
+
+  /** Returns smaller variants of a case, roughly in order of how much they remove. */
+  private static List<Case> candidates(Case testCase) {
+    List<Case> candidates = new ArrayList<>();
+    final long[] program = testCase.program;
+    final long[] patches = testCase.patches;
+    for (int length = 1; length < program.length; length++) {
+      candidates.add(new Case(Arrays.copyOf(program, length), patches, testCase.chunks));
+    }
+    for (int i = 0; i < patches.length; i += 2) {
+      long[] fewer = new long[patches.length - 2];
+      System.arraycopy(patches, 0, fewer, 0, i);
+      System.arraycopy(patches, i + 2, fewer, i, fewer.length - i);
+      candidates.add(new Case(program, fewer, testCase.chunks));
+    }
+    for (int i = 0; i < testCase.chunks.length; i++) {
+      long[][] fewer = new long[testCase.chunks.length - 1][];
+      for (int j = 0, k = 0; j < testCase.chunks.length; j++) {
+        if (j != i) {
+          fewer[k++] = testCase.chunks[j];
+        }
+      }
+      candidates.add(new Case(program, patches, fewer));
+    }
+    for (int i = 0; i < program.length; i++) {
+      long[] removed = new long[program.length - 1];
+      System.arraycopy(program, 0, removed, 0, i);
+      System.arraycopy(program, i + 1, removed, i, removed.length - i);
+      candidates.add(new Case(removed, patches, testCase.chunks));
+    }
+    for (int i = 0; i < program.length; i++) {
+      for (long simpler : new long[] {0, 1, program[i] / 2}) {
+        if (Math.abs(simpler) < Math.abs(program[i])) {
+          long[] changed = program.clone();
+          changed[i] = simpler;
+          candidates.add(new Case(changed, patches, testCase.chunks));
+        }
+      }
+    }
+    return candidates;
+  }
+
+  private static boolean fails(Engine engine, Case testCase) {
+    Run expected = runReference(testCase);
+    return expected != null && compare(expected, run(engine, testCase)) != null;
+  }
+
+  private static void report(String engine, Case testCase) {
+    Run expected = runReference(testCase);
+    System.out.println("Mismatch in " + engine + ":\n  " + testCase);
+    System.out.println("  " + compare(expected, run(ENGINES.get(engine), testCase)));
+  }
+
+  /** Generates a random program made of mostly valid instructions, plus input for it. */
+  private static Case generate(Random random) {
+    final int instructions = 2 + random.nextInt(40);
+    int[] opCodes = new int[instructions];
+    int[] starts = new int[instructions];
+    int codeSize = 0;
+    for (int i = 0; i < instructions; i++) {
+      opCodes[i] = i == instructions - 1 || random.nextInt(50) == 0 ? 99 : randomOpCode(random);
+      starts[i] = codeSize;
+      codeSize += opCodes[i] == 99 ? 1 : 1 + PARAMETER_COUNTS[opCodes[i]];
+    }
+    final int size = codeSize + 4 + random.nextInt(16); // Data follows the code
+    long[] program = new long[size];
+
+    for (int i = 0; i < instructions; i++) {
+      final int opCode = opCodes[i];
+      final int at = starts[i];
+      if (opCode == 99) {
+        program[at] = 99;
+        continue;
+      }
+      long instruction = random.nextInt(100) == 0 ? random.nextInt(100) : opCode; // Maybe invalid
+      for (int index = 0; index < PARAMETER_COUNTS[opCode]; index++) {
+        final boolean writes = index == PARAMETER_COUNTS[opCode] - 1 && writesLast(opCode);
+        final boolean jumpTarget = (opCode == 5 || opCode == 6) && index == 1;
+        int mode;
+        if (writes) {
+          mode = random.nextInt(200) == 0 ? 1 : random.nextInt(3) == 0 ? 2 : 0;
+        } else {
+          mode = random.nextInt(3);
+        }
+        instruction += mode * (index == 0 ? 100 : index == 1 ? 1000 : 10000);
+
+        long parameter;
+        if (jumpTarget && mode == 1) {
+          // Mostly forward, so that most programs terminate
+          final int target =
+              random.nextInt(5) == 0 ? random.nextInt(i + 1) : i + random.nextInt(instructions - i);
+          parameter = starts[target];
+        } else if (opCode == 9 && mode == 1) {
+          parameter = random.nextInt(12) - 3;
+        } else if (mode == 1) {
+          parameter = randomValue(random);
+        } else if (mode == 2) {
+          parameter = random.nextInt(size + 2) - 2;
+        } else {
+          parameter = random.nextInt(size); // Includes the code, for self-modification
+        }
+        program[at + 1 + index] = parameter;
+      }
+      program[at] = instruction;
+    }
+
+    // Plant the idioms ShipOptimizer fuses, which random choices would hardly ever produce
+    for (int i = 0; i < instructions; i++) {
+      final int at = starts[i];
+      if (i > 0
+          && (opCodes[i] == 5 || opCodes[i] == 6)
+          && (opCodes[i - 1] == 7 || opCodes[i - 1] == 8)
+          && random.nextBoolean()) {
+        // Compare into a cell, then jump on that same cell
+        setMode(program, starts[i - 1], 2, 0);
+        setMode(program, at, 0, 0);
+        program[at + 1] = program[starts[i - 1] + 3];
+      } else if (opCodes[i] == 1 && random.nextInt(3) == 0) {
+        // Add an immediate value to a cell in place
+        final int mode = random.nextBoolean() ? 0 : 2;
+        setMode(program, at, 0, 1);
+        setMode(program, at, 1, mode);
+        setMode(program, at, 2, mode);
+        program[at + 2] = program[at + 3];
+      }
+    }
+
+    for (int address = codeSize; address < size; address++) {
+      program[address] =
+          random.nextBoolean() ? starts[random.nextInt(instructions)] : randomValue(random);
+    }
+
+    // Now and then patch a cell from outside, with a value that is mostly plausible there
+    long[] patches = new long[random.nextInt(4) == 0 ? 2 * (1 + random.nextInt(3)) : 0];
+    for (int i = 0; i < patches.length; i += 2) {
+      patches[i] = random.nextInt(size);
+      patches[i + 1] = random.nextBoolean() ? program[random.nextInt(size)] : randomValue(random);
+    }
+
+    long[][] chunks = new long[random.nextInt(6)][];
+    for (int i = 0; i < chunks.length; i++) {
+      chunks[i] = new long[1 + random.nextInt(3)];
+      for (int j = 0; j < chunks[i].length; j++) {
+        chunks[i][j] = randomValue(random);
+      }
+    }
+    return new Case(program, patches, chunks);
+  }
+
+  private static void setMode(long[] program, int at, int index, int mode) {
+    final long divisor = index == 0 ? 100 : index == 1 ? 1000 : 10000;
+    program[at] += (mode - program[at] / divisor % 10) * divisor;
+  }
+
+  private static boolean writesLast(int opCode) {
+    return opCode == 1 || opCode == 2 || opCode == 3 || opCode == 7 || opCode == 8;
+  }
+
+  private static int randomOpCode(Random random) {
+    int choice = random.nextInt(Arrays.stream(OPCODE_WEIGHTS).sum());
+    for (int i = 0; i < OPCODES.length; i++) {
+      choice -= OPCODE_WEIGHTS[i];
+      if (choice < 0) {
+        return OPCODES[i];
+      }
+    }
+    throw new AssertionError();
+  }
+
+  /** Mostly small values, but now and then one big enough to overflow an int. */
+  private static long randomValue(Random random) {
+    switch (random.nextInt(10)) {
+      case 0:
+        return random.nextInt(2001) - 1000;
+      case 1:
+        return random.nextBoolean()
+            ? Integer.MAX_VALUE - random.nextInt(3)
+            : (random.nextLong() >> random.nextInt(40));
+      default:
+        return random.nextInt(20) - 5;
+    }
+  }
+
+  /** Runs a case on the reference interpreter, returning null if it doesn't stop in time. */
+  private static Run runReference(Case testCase) {
+    Reference reference = new Reference(testCase.program);
+    for (int i = 0; i < testCase.patches.length; i += 2) {
+      reference.memory.put(testCase.patches[i], testCase.patches[i + 1]);
+    }
+    Run run = new Run();
+    int chunk = 0;
+    while (true) {
+      ShipComputer.Outcome outcome;
+      try {
+        outcome = reference.execute();
+      } catch (RuntimeException e) {
+        drainOutput(reference.output, run);
+        run.trace.add("error");
+        break;
+      }
+      if (outcome == ShipComputer.Outcome.OUT_OF_BUDGET) {
+        return null;
+      }
+      drainOutput(reference.output, run);
+      run.trace.add(stop(outcome, reference.instructionPointer));
+      if (outcome != ShipComputer.Outcome.AWAITING_INPUT || chunk == testCase.chunks.length) {
+        break;
+      }
+      for (long value : testCase.chunks[chunk++]) {
+        reference.input.add(value);
+      }
+    }
+
+    run.highestAddress = reference.highestAddress;
+    run.memory = reference::read;
+    run.written = new TreeSet<>(reference.memory.keySet());
+    for (long address = 0; address < testCase.program.length; address++) {
+      run.written.add(address);
+    }
+    return run;
+  }
+
+  /**
+   * The simplest possible Intcode interpreter, written straight from the puzzle descriptions and
+   * sharing nothing with the real engines.
+   */
+  private static class Reference {
+    private static final long[] MODE_DIVISORS = {100, 1000, 10000};
+
+    final Map<Long, Long> memory = new HashMap<>();
+    final LongChannel input = new LongChannel();
+    final LongChannel output = new LongChannel();
+    long instructionPointer = 0;
+    long relativeBase = 0;
+    long steps = 0;
+    long highestAddress = 0;
+
+    Reference(long[] program) {
+      for (int address = 0; address < program.length; address++) {
+        memory.put((long) address, program[address]);
+      }
+    }
+
+    long read(long address) {
+      if (address < 0) {
+        throw new RuntimeException("Negative address");
+      }
+      highestAddress = Math.max(highestAddress, address);
+      return memory.getOrDefault(address, 0L);
+    }
+
+    void write(long address, long value) {
+      if (address < 0) {
+        throw new RuntimeException("Negative address");
+      }
+      highestAddress = Math.max(highestAddress, address);
+      memory.put(address, value);
+    }
+
+    ShipComputer.Outcome execute() {
+      while (steps < MAX_STEPS) {
+        if (instructionPointer < 0) {
+          throw new RuntimeException("Instruction pointer out of bounds");
+        }
+        final long instruction = read(instructionPointer);
+        if (instruction < 0) {
+          throw new RuntimeException("Unexpected opcode");
+        }
+        switch ((int) (instruction % 100)) {
+          case 1:
+            write(address(instruction, 2), parameter(instruction, 0) + parameter(instruction, 1));
+            instructionPointer += 4;
+            break;
+          case 2:
+            write(address(instruction, 2), parameter(instruction, 0) * parameter(instruction, 1));
+            instructionPointer += 4;
+            break;
+          case 3:
+            if (input.isEmpty()) {
+              return ShipComputer.Outcome.AWAITING_INPUT;
+            }
+            write(address(instruction, 0), input.remove());
+            instructionPointer += 2;
+            break;
+          case 4:
+            output.add(parameter(instruction, 0));
+            instructionPointer += 2;
+            break;
+          case 5:
+            instructionPointer =
+                parameter(instruction, 0) != 0
+                    ? parameter(instruction, 1)
+                    : instructionPointer + 3;
+            break;
+          case 6:
+            instructionPointer =
+                parameter(instruction, 0) == 0
+                    ? parameter(instruction, 1)
+                    : instructionPointer + 3;
+            break;
+          case 7:
+            write(
+                address(instruction, 2),
+                parameter(instruction, 0) < parameter(instruction, 1) ? 1 : 0);
+            instructionPointer += 4;
+            break;
+          case 8:
+            write(
+                address(instruction, 2),
+                parameter(instruction, 0) == parameter(instruction, 1) ? 1 : 0);
+            instructionPointer += 4;
+            break;
+          case 9:
+            relativeBase += parameter(instruction, 0);
+            instructionPointer += 2;
+            break;
+          case 99:
+            return ShipComputer.Outcome.HALTED;
+          default:
+            throw new RuntimeException("Unexpected opcode");
+        }
+        steps++;
+      }
+      return ShipComputer.Outcome.OUT_OF_BUDGET;
+    }
+
+    private long parameter(long instruction, int index) {
+      final long parameter = read(instructionPointer + index + 1);
+      switch (mode(instruction, index)) {
+        case 0:
+          return read(parameter);
+        case 1:
+          return parameter;
+        case 2:
+          return read(relativeBase + parameter);
+        default:
+          throw new RuntimeException("Unknown parameter mode");
+      }
+    }
+
+    private long address(long instruction, int index) {
+      final long parameter = read(instructionPointer + index + 1);
+      switch (mode(instruction, index)) {
+        case 0:
+          return parameter;
+        case 2:
+          return relativeBase + parameter;
+        default:
+          throw new RuntimeException("Bad output parameter mode");
+      }
+    }
+
+    private static int mode(long instruction, int index) {
+      return (int) (instruction / MODE_DIVISORS[index] % 10);
+    }
+  }
+}
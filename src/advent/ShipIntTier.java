@@ -0,0 +1,383 @@
+package advent;
+
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Optional 32-bit tier for a {@link ShipComputer}. Most Intcode programs never leave int range, so
+ * while this tier is in use memory is kept in pages of {@code int}s (half the size of the long
+ * memory, which meanwhile stays shared with the program's ROM) and arithmetic is done with {@link
+ * Math#addExact} and {@link Math#multiplyExact}.
+ *
+ * <p>The first time anything doesn't fit (an overflow, an out of range input or address, or an
+ * instruction this tier doesn't handle) the instruction is abandoned before it has any effect, the
+ * cells are copied into the long memory and the computer carries on from that same instruction. So
+ * results are exactly the same as if this tier had never been used.
+ */
+class ShipIntTier {
+  private static final int MAX_CELLS = 1 << 16; // Same as the flat region of ShipMemory
+  private static final int PAGE_BITS = ShipMemory.PAGE_BITS;
+  private static final int PAGE_SIZE = ShipMemory.PAGE_SIZE;
+  private static final int PAGE_MASK = ShipMemory.PAGE_MASK;
+  private static final int PAGE_COUNT = MAX_CELLS >>> PAGE_BITS;
+
+  private static final Spill SPILL = new Spill();
+
+  private boolean fits; // Whether every value in the ROM fits in an int
+
+  // Cells live in pages which forks share copy-on-write, like ShipMemory's pages. A null page
+  // holds nothing but zeros. romPages holds the ROM itself, and is never modified.
+  private int[][] romPages;
+  private int[][] pages;
+  private boolean[] pageShared;
+  private long[] dirty; // One bit per cell written since loading or the last reset
+
+  // Plain decoded instructions (never superinstructions) for the ROM's pages, allocated as they're
+  // needed. Forks share these too. Filling in an entry of a shared page is allowed, because every
+  // computer sharing a page has the same cells behind it: writing a cell first takes a private
+  // copy of its page (see store()). Any other change to a shared page also copies it.
+  private int[][] decoded;
+  private boolean[] decodedShared;
+
+  // Registers, only valid during execute()
+  private int instructionPointer;
+  private int relativeBase;
+
+  ShipIntTier(long[] rom) {
+    load(rom);
+  }
+
+  private ShipIntTier(ShipIntTier parent) {
+    fits = parent.fits;
+    romPages = parent.romPages;
+    pages = parent.pages.clone();
+    pageShared = new boolean[PAGE_COUNT];
+    Arrays.fill(pageShared, true);
+    Arrays.fill(parent.pageShared, true);
+    dirty = parent.dirty.clone();
+    decoded = parent.decoded.clone();
+    decodedShared = new boolean[decoded.length];
+    Arrays.fill(decodedShared, true);
+    Arrays.fill(parent.decodedShared, true);
+  }
+
+  /** Returns a copy of this tier. No pages are copied until one side changes them. */
+  ShipIntTier copy() {
+    return new ShipIntTier(this);
+  }
+
+  /** Switches to a different program. Call {@link #reset()} before using the tier. */
+  void load(long[] rom) {
+    fits = Arrays.stream(rom).allMatch(value -> (int) value == value) && rom.length <= MAX_CELLS;
+    romPages = new int[fits ? pagesFor(rom.length) : 0][];
+    for (int page = 0; page < romPages.length; page++) {
+      romPages[page] = new int[PAGE_SIZE];
+      final int start = page << PAGE_BITS;
+      for (int i = 0; i < PAGE_SIZE && start + i < rom.length; i++) {
+        romPages[page][i] = (int) rom[start + i];
+      }
+    }
+    pages = new int[PAGE_COUNT][];
+    System.arraycopy(romPages, 0, pages, 0, romPages.length);
+    pageShared = new boolean[PAGE_COUNT];
+    Arrays.fill(pageShared, true);
+    dirty = new long[(romPages.length << PAGE_BITS) >>> 6];
+    decoded = new int[romPages.length][];
+    decodedShared = new boolean[decoded.length];
+  }
+
+  /**
+   * Restores the program's initial state. Returns false if the program doesn't fit this tier. Only
+   * the cells written since the last reset are touched, and pages still shared with the ROM or a
+   * fork are dropped rather than copied.
+   */
+  boolean reset() {
+    if (!fits) {
+      return false;
+    }
+    for (int word = 0; word < dirty.length; word++) {
+      long bits = dirty[word];
+      while (bits != 0) {
+        final int cell = (word << 6) + Long.numberOfTrailingZeros(bits);
+        restore(cell);
+        bits &= bits - 1;
+      }
+      dirty[word] = 0;
+    }
+    return true;
+  }
+
+  private void restore(int cell) {
+    final int page = cell >>> PAGE_BITS;
+    final int[] romPage = page < romPages.length ? romPages[page] : null;
+    if (pageShared[page] || pages[page] == null) {
+      pages[page] = romPage;
+      pageShared[page] = true;
+    } else {
+      pages[page][cell & PAGE_MASK] = romPage == null ? 0 : romPage[cell & PAGE_MASK];
+    }
+    invalidate(cell);
+  }
+
+  int size() {
+    return MAX_CELLS;
+  }
+
+  int read(int address) {
+    return load(address);
+  }
+
+  /** Writes a cell, returning false (having changed nothing) if it doesn't fit this tier. */
+  boolean write(long address, long value) {
+    if ((int) value != value || address < 0 || address >= MAX_CELLS) {
+      return false;
+    }
+    store((int) address, (int) value);
+    return true;
+  }
+
+  /**
+   * Copies every cell written while in this tier over to the long memory, which still holds the
+   * ROM (or whatever was left there when this tier was entered) everywhere else.
+   */
+  void spill(ShipComputer computer) {
+    for (int word = 0; word < dirty.length; word++) {
+      long bits = dirty[word];
+      while (bits != 0) {
+        final int cell = (word << 6) + Long.numberOfTrailingZeros(bits);
+        if (load(cell) != computer.memory.read(cell)) {
+          computer.writeMemory(cell, load(cell));
+        }
+        bits &= bits - 1;
+      }
+    }
+  }
+
+  /**
+   * Runs the computer's program until it halts, needs input, runs out of budget or leaves this
+   * tier. Returns {@link ShipComputer#HALTED}, {@link ShipComputer#AWAITING_INPUT}, {@link
+   * ShipComputer#OUT_OF_BUDGET} or, once the computer has left this tier, {@link
+   * ShipComputer#RUNNING}.
+   */
+  int execute(ShipComputer computer, LongSupplier inputSource, LongConsumer outputSink) {
+    final LongChannel input = computer.getInput();
+    final LongChannel output = computer.getOutput();
+    instructionPointer = (int) computer.instructionPointer;
+    relativeBase = (int) computer.relativeBase;
+    long budget = computer.budget;
+
+    try {
+      while (budget > 0) {
+        final int instruction = decode(instructionPointer);
+        switch (instruction & ShipComputer.OPCODE_MASK) {
+          case 1: // ADD
+            store(
+                address(instruction, 2),
+                add(parameter(instruction, 0), parameter(instruction, 1)));
+            instructionPointer += 4;
+            break;
+          case 2: // MULTIPLY
+            store(
+                address(instruction, 2),
+                multiply(parameter(instruction, 0), parameter(instruction, 1)));
+            instructionPointer += 4;
+            break;
+          case 3: // INPUT
+            final int target = address(instruction, 0);
+            if (target < 0 || target >= MAX_CELLS) {
+              throw SPILL;
+            }
+            if (!input.isEmpty()) {
+              final long value = input.get(0);
+              if ((int) value != value) {
+                throw SPILL;
+              }
+              input.remove();
+              store(target, (int) value);
+            } else if (inputSource != null) {
+              final long value = inputSource.getAsLong();
+              if ((int) value != value) {
+                // The value can't be put back, so it's written once the long tier has taken over
+                instructionPointer += 2;
+                budget--;
+                computer.leaveIntTier();
+                computer.writeMemory(target, value);
+                return ShipComputer.RUNNING;
+              }
+              store(target, (int) value);
+            } else {
+              return ShipComputer.AWAITING_INPUT;
+            }
+            instructionPointer += 2;
+            break;
+          case 4: // OUT
+            if (outputSink != null) {
+              outputSink.accept(parameter(instruction, 0));
+            } else {
+              output.add(parameter(instruction, 0));
+            }
+            instructionPointer += 2;
+            break;
+          case 5: // JUMP IF TRUE
+            instructionPointer =
+                parameter(instruction, 0) != 0
+                    ? parameter(instruction, 1)
+                    : instructionPointer + 3;
+            break;
+          case 6: // JUMP IF FALSE
+            instructionPointer =
+                parameter(instruction, 0) == 0
+                    ? parameter(instruction, 1)
+                    : instructionPointer + 3;
+            break;
+          case 7: // LESS THAN
+            store(
+                address(instruction, 2),
+                parameter(instruction, 0) < parameter(instruction, 1) ? 1 : 0);
+            instructionPointer += 4;
+            break;
+          case 8: // EQUALS
+            store(
+                address(instruction, 2),
+                parameter(instruction, 0) == parameter(instruction, 1) ? 1 : 0);
+            instructionPointer += 4;
+            break;
+          case 9: // ADJUST RELATIVE BASE
+            relativeBase = add(relativeBase, parameter(instruction, 0));
+            instructionPointer += 2;
+            break;
+          case 99: // END
+            return ShipComputer.HALTED;
+          default: // Including errors, which the long tier reports
+            throw SPILL;
+        }
+        budget--;
+      }
+      return ShipComputer.OUT_OF_BUDGET;
+    } catch (Spill e) {
+      computer.leaveIntTier();
+      return ShipComputer.RUNNING;
+    } finally {
+      computer.instructionPointer = instructionPointer;
+      computer.relativeBase = relativeBase;
+      computer.budget = budget;
+    }
+  }
+
+  private int decode(int address) {
+    final int page = address >>> PAGE_BITS;
+    if (address >= 0 && page < decoded.length) {
+      int[] entries = decoded[page];
+      if (entries == null) {
+        entries = new int[PAGE_SIZE];
+        decoded[page] = entries;
+        decodedShared[page] = false;
+      }
+      int instruction = entries[address & PAGE_MASK];
+      if (instruction == 0) {
+        instruction = ShipComputer.decodeInstruction(load(address));
+        entries[address & PAGE_MASK] = instruction;
+      }
+      return instruction;
+    }
+    return ShipComputer.decodeInstruction(load(address));
+  }
+
+  private int parameter(int instruction, int index) {
+    final int parameter = load(instructionPointer + index + 1);
+    switch (ShipComputer.getMode(instruction, index)) {
+      case 0: // Position mode
+        return load(parameter);
+      case 1: // Immediate mode
+        return parameter;
+      case 2: // Relative mode
+        return load(add(relativeBase, parameter));
+      default:
+        throw SPILL;
+    }
+  }
+
+  private int address(int instruction, int index) {
+    final int parameter = load(instructionPointer + index + 1);
+    switch (ShipComputer.getMode(instruction, index)) {
+      case 0: // Position mode
+        return parameter;
+      case 2: // Relative mode
+        return add(relativeBase, parameter);
+      default:
+        throw SPILL;
+    }
+  }
+
+  // Overflow is caught right away, so that nothing thrown by an output sink is mistaken for it
+  private static int add(int first, int second) {
+    try {
+      return Math.addExact(first, second);
+    } catch (ArithmeticException e) {
+      throw SPILL;
+    }
+  }
+
+  private static int multiply(int first, int second) {
+    try {
+      return Math.multiplyExact(first, second);
+    } catch (ArithmeticException e) {
+      throw SPILL;
+    }
+  }
+
+  private int load(int address) {
+    if (address >= 0 && address < MAX_CELLS) {
+      final int[] page = pages[address >>> PAGE_BITS];
+      return page == null ? 0 : page[address & PAGE_MASK];
+    }
+    if (address < 0) {
+      throw SPILL;
+    }
+    return 0; // Never written
+  }
+
+  private void store(int address, int value) {
+    if (address < 0 || address >= MAX_CELLS) {
+      throw SPILL;
+    }
+    final int page = address >>> PAGE_BITS;
+    int[] cells = pages[page];
+    if (pageShared[page] || cells == null) {
+      cells = cells == null ? new int[PAGE_SIZE] : cells.clone();
+      pages[page] = cells;
+      pageShared[page] = false;
+    }
+    cells[address & PAGE_MASK] = value;
+    if ((address >>> 6) >= dirty.length) {
+      dirty = Arrays.copyOf(dirty, Math.max((address >>> 6) + 1, 2 * dirty.length));
+    }
+    dirty[address >>> 6] |= 1L << address;
+    invalidate(address);
+  }
+
+  /** Drops the decoded entry for a cell, taking a private copy of its page if need be. */
+  private void invalidate(int address) {
+    final int page = address >>> PAGE_BITS;
+    if (page < decoded.length && decoded[page] != null) {
+      if (decodedShared[page]) {
+        decoded[page] = decoded[page].clone();
+        decodedShared[page] = false;
+      }
+      decoded[page][address & PAGE_MASK] = 0;
+    }
+  }
+
+  private static int pagesFor(int cells) {
+    return (cells + PAGE_SIZE - 1) >>> PAGE_BITS;
+  }
+
+  /** Thrown to abandon the current instruction and leave this tier. */
+  @SuppressWarnings("serial") // Never serialized, and there's only the one instance
+  private static class Spill extends RuntimeException {
+    Spill() {
+      super(null, null, false, false);
+    }
+  }
+}
@@ -0,0 +1,75 @@
+package advent;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Detects livelocked programs for a single {@link ShipComputer}, once {@link
+ * ShipComputer#enableLoopDetector()} has been called. The detector keeps a 64-bit fingerprint of
+ * the whole machine state up to date as memory is written: each non-zero cell contributes a hash
+ * of its address and value, and the contributions are summed, so a write only has to swap out one
+ * term. Fingerprinting the state is therefore cheap enough to do at every I/O boundary.
+ *
+ * <p>A program which comes back to the same state without consuming any input in between will
+ * repeat itself forever. {@link ShipComputer#execute(long)} reports this as {@link
+ * ShipComputer.Outcome#LOOPING} as soon as a state repeats at an output instruction. Programs
+ * driven by input can still loop if whatever supplies the input does; callers which know their
+ * input is a function of the program's state can compare {@link #fingerprint}s across inputs.
+ *
+ * <p>Fingerprints are hashes, so two different states collide with a probability of around 2^-64.
+ */
+public class ShipLoopDetector {
+  private long memoryHash;
+  private final Set<Long> seen = new HashSet<>(); // Fingerprints since input was last consumed
+  private long fingerprintsTaken = 0;
+
+  ShipLoopDetector(ShipMemory memory) {
+    reset(memory);
+  }
+
+  /** Starts over from the given memory, forgetting every state seen so far. */
+  void reset(ShipMemory memory) {
+    memoryHash = memory.hashCells();
+    seen.clear();
+  }
+
+  void onWrite(long address, long oldValue, long newValue) {
+    memoryHash += cellHash(address, newValue) - cellHash(address, oldValue);
+  }
+
+  void onInput() {
+    seen.clear();
+  }
+
+  /** Called after each output. Returns true if this state was already seen since the last input. */
+  boolean onOutput(ShipComputer computer) {
+    fingerprintsTaken++;
+    return !seen.add(fingerprint(computer));
+  }
+
+  /**
+   * Returns a fingerprint of the computer's memory and registers. Queued input and output are not
+   * included, since they don't affect what the program does next until they're consumed.
+   */
+  public long fingerprint(ShipComputer computer) {
+    return memoryHash
+        + mix(computer.instructionPointer ^ 0x5DEECE66DL)
+        + mix(computer.relativeBase ^ 0x2545F4914F6CDD1DL);
+  }
+
+  public long getFingerprintsTaken() {
+    return fingerprintsTaken;
+  }
+
+  /** Returns the contribution of a single cell to the memory hash. Zero cells add nothing. */
+  static long cellHash(long address, long value) {
+    return value == 0 ? 0 : mix(address * 0x9E3779B97F4A7C15L + value);
+  }
+
+  // Finalizer from SplitMix64
+  private static long mix(long z) {
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+}
@@ -0,0 +1,398 @@
+package advent;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Primitive memory for a {@link ShipComputer}. Addresses below {@code denseLimit} (which always
+ * covers the loaded program) live in a flat {@code long[]} that grows on demand; anything beyond
+ * that is stored in sparse fixed-size pages, which are only allocated once they are written to.
+ *
+ * <p>Memory can be {@link #fork() forked}. The fork shares the flat image and every page with its
+ * parent, and whichever side writes to a shared piece first takes a private copy of it.
+ *
+ * <p>The program memory was loaded with is kept as a read-only ROM (initially shared with the flat
+ * image, in the same copy-on-write fashion), and every flat cell written since is marked dirty, so
+ * that {@link #reset()} can restore the ROM by touching only those cells. Memory {@link #readFrom
+ * read back} from a snapshot takes the whole snapshot as its ROM, pages included.
+ */
+public class ShipMemory {
+  static final int PAGE_BITS = 10;
+  static final int PAGE_SIZE = 1 << PAGE_BITS;
+  static final int PAGE_MASK = PAGE_SIZE - 1;
+
+  // Relative-mode programs (e.g. Day 9) routinely write a little past the end of the program, so
+  // the flat region is allowed to grow this far before falling back to pages
+  private static final int MIN_DENSE_LIMIT = 1 << 16;
+
+  private static final long[] NOT_WRITABLE = new long[0];
+
+  private int denseLimit;
+  private long[] rom; // Never modified, so can be shared between forks
+  private Map<Long, long[]> romPages = Map.of(); // Likewise; only ever set by readFrom()
+  private long[] image;
+  // Either the same array as image, or empty while image is shared with a fork or the ROM.
+  // Checking writes against this keeps the copy-on-write test out of the fast path.
+  private long[] writable;
+  private long[] dirty; // One bit per flat cell written since loading or the last reset
+
+  private final Map<Long, Page> pages = new HashMap<>();
+  private int pageLimit = Integer.MAX_VALUE;
+  private long lastPageNumber = -1;
+  private Page lastPage;
+
+  public ShipMemory(int[] program) {
+    this(Arrays.stream(program).asLongStream().toArray());
+  }
+
+  public ShipMemory(long[] program) {
+    this(Math.max(MIN_DENSE_LIMIT, program.length), program.clone());
+  }
+
+  /** Takes ownership of {@code rom}, which must never be modified afterwards. */
+  private ShipMemory(int denseLimit, long[] rom) {
+    load(denseLimit, rom);
+  }
+
+  private ShipMemory(ShipMemory parent) {
+    denseLimit = parent.denseLimit;
+    rom = parent.rom;
+    romPages = parent.romPages;
+    image = parent.image;
+    writable = NOT_WRITABLE;
+    parent.writable = NOT_WRITABLE;
+    dirty = parent.dirty.clone();
+    pageLimit = parent.pageLimit;
+
+    for (Page page : parent.pages.values()) {
+      page.shared = true;
+    }
+    pages.putAll(parent.pages);
+  }
+
+  /**
+   * Returns memory loaded with the given program without copying it, for programs which are known
+   * never to change (see {@link ProgramImage}).
+   */
+  static ShipMemory ofRom(long[] rom) {
+    return new ShipMemory(Math.max(MIN_DENSE_LIMIT, rom.length), rom);
+  }
+
+  private void load(int denseLimit, long[] rom) {
+    this.denseLimit = denseLimit;
+    this.rom = rom;
+    romPages = Map.of();
+    image = rom;
+    writable = NOT_WRITABLE;
+    dirty = new long[wordsFor(rom.length)];
+    clearPages();
+  }
+
+  /** Returns a copy of this memory. No cells are copied until one side writes to them. */
+  public ShipMemory fork() {
+    return new ShipMemory(this);
+  }
+
+  public long read(long address) {
+    if (address >= 0 && address < image.length) {
+      return image[(int) address];
+    }
+    return readSlow(address);
+  }
+
+  public void write(long address, long value) {
+    if (address >= 0 && address < writable.length) {
+      writable[(int) address] = value;
+      dirty[(int) address >>> 6] |= 1L << address;
+    } else {
+      writeSlow(address, value);
+    }
+  }
+
+  /**
+   * Restores the program this memory was loaded with, and clears everything beyond it. If the flat
+   * image is private to this memory, only the dirty cells are rewritten and nothing is allocated.
+   */
+  public void reset() {
+    if (writable != image) {
+      // Shared with the ROM or a fork. Sharing the ROM again is cheaper than copying anything.
+      image = rom;
+      writable = NOT_WRITABLE;
+      Arrays.fill(dirty, 0);
+    } else {
+      for (int word = 0; word < dirty.length; word++) {
+        long bits = dirty[word];
+        while (bits != 0) {
+          final int cell = (word << 6) + Long.numberOfTrailingZeros(bits);
+          image[cell] = cell < rom.length ? rom[cell] : 0;
+          bits &= bits - 1;
+        }
+        dirty[word] = 0;
+      }
+    }
+    clearPages();
+  }
+
+  /**
+   * Loads a different program, as if this memory had been newly constructed with it. Does nothing
+   * beyond a {@link #reset()} if it is the program already loaded.
+   */
+  public void reset(long[] program) {
+    if (isLoaded(program)) {
+      reset();
+    } else {
+      load(Math.max(MIN_DENSE_LIMIT, program.length), program.clone());
+    }
+  }
+
+  /** Returns whether the given program is the one this memory was loaded with. */
+  boolean isLoaded(long[] program) {
+    return romPages.isEmpty() && (program == rom || Arrays.equals(program, rom));
+  }
+
+  /**
+   * Returns the program this memory was loaded with, which must not be modified. This is only the
+   * flat part of the ROM; see {@link #hasRomPages()}.
+   */
+  long[] rom() {
+    return rom;
+  }
+
+  /** Returns whether the ROM extends into pages, which only memory read from a snapshot does. */
+  boolean hasRomPages() {
+    return !romPages.isEmpty();
+  }
+
+  /** Returns whether nothing has been written since loading or the last reset. */
+  boolean isPristine() {
+    if (nextDirtyCell(0) >= 0 || pages.size() != romPages.size()) {
+      return false;
+    }
+    for (Map.Entry<Long, Page> entry : pages.entrySet()) {
+      if (entry.getValue().cells != romPages.get(entry.getKey())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the first flat cell at or after {@code from} which has been written since loading or
+   * the last reset, or -1 if there is none.
+   */
+  int nextDirtyCell(int from) {
+    int word = from >>> 6;
+    if (word >= dirty.length) {
+      return -1;
+    }
+    long bits = dirty[word] & (-1L << from);
+    while (bits == 0) {
+      if (++word == dirty.length) {
+        return -1;
+      }
+      bits = dirty[word];
+    }
+    return (word << 6) + Long.numberOfTrailingZeros(bits);
+  }
+
+  /**
+   * Limits how many pages may be allocated beyond the flat region, so that a program scattering
+   * writes across the address space fails rather than exhausting the heap. Writing to a new page
+   * beyond the limit throws.
+   */
+  public void setPageLimit(int pageLimit) {
+    this.pageLimit = pageLimit;
+  }
+
+  /** Returns the size of the flat region, i.e. the first address which may be backed by a page. */
+  public int denseSize() {
+    return image.length;
+  }
+
+  /** Sums {@link ShipLoopDetector#cellHash} over every cell in this memory. */
+  long hashCells() {
+    long hash = 0;
+    for (int address = 0; address < image.length; address++) {
+      hash += ShipLoopDetector.cellHash(address, image[address]);
+    }
+    for (Map.Entry<Long, Page> entry : pages.entrySet()) {
+      final long start = entry.getKey() << PAGE_BITS;
+      final long[] cells = entry.getValue().cells;
+      for (int i = 0; i < PAGE_SIZE; i++) {
+        hash += ShipLoopDetector.cellHash(start + i, cells[i]);
+      }
+    }
+    return hash;
+  }
+
+  /**
+   * Writes the contents of this memory as a sequence of pages, in address order. The flat region
+   * is cut into page-sized chunks as well (the last one may be short), and pages which hold only
+   * zeros are skipped altogether. Read back with {@link #readFrom}.
+   */
+  public void writeTo(DataOutput out) throws IOException {
+    out.writeInt(denseLimit);
+    out.writeInt(image.length);
+
+    for (int start = 0; start < image.length; start += PAGE_SIZE) {
+      writePage(out, start >>> PAGE_BITS, image, start, Math.min(PAGE_SIZE, image.length - start));
+    }
+    for (Map.Entry<Long, Page> entry : new TreeMap<>(pages).entrySet()) {
+      writePage(out, entry.getKey(), entry.getValue().cells, 0, PAGE_SIZE);
+    }
+    out.writeLong(-1); // End of pages
+  }
+
+  private static void writePage(DataOutput out, long pageNumber, long[] cells, int from, int length)
+      throws IOException {
+    int end = from + length;
+    while (end > from && cells[end - 1] == 0) {
+      end--;
+    }
+    if (end == from) {
+      return;
+    }
+    out.writeLong(pageNumber);
+    for (int i = from; i < from + length; i++) {
+      out.writeLong(cells[i]);
+    }
+  }
+
+  /** Reads memory written by {@link #writeTo}. */
+  public static ShipMemory readFrom(DataInput in) throws IOException {
+    final int denseLimit = in.readInt();
+    final int denseSize = in.readInt();
+    if (denseSize < 0 || denseSize > denseLimit) {
+      throw new IOException("Corrupt memory image: " + denseSize + " of " + denseLimit + " cells");
+    }
+
+    long[] image = new long[denseSize];
+    ShipMemory memory = new ShipMemory(denseLimit, image);
+    Map<Long, long[]> romPages = new HashMap<>();
+    long previous = -1;
+    long pageNumber;
+    while ((pageNumber = in.readLong()) != -1) {
+      if (pageNumber <= previous) {
+        throw new IOException("Corrupt memory image: page " + pageNumber + " out of order");
+      }
+      previous = pageNumber;
+
+      final long start = pageNumber << PAGE_BITS;
+      if (start < denseSize) {
+        final int length = (int) Math.min(PAGE_SIZE, denseSize - start);
+        for (int i = 0; i < length; i++) {
+          image[(int) start + i] = in.readLong();
+        }
+      } else {
+        long[] cells = new long[PAGE_SIZE];
+        for (int i = 0; i < PAGE_SIZE; i++) {
+          cells[i] = in.readLong();
+        }
+        romPages.put(pageNumber, cells);
+      }
+    }
+    if (!romPages.isEmpty()) {
+      memory.romPages = romPages;
+      memory.clearPages();
+    }
+    return memory;
+  }
+
+  private long readSlow(long address) {
+    checkAddress(address, "read");
+    if (address < denseLimit) {
+      return 0; // Not yet grown into
+    }
+    Page page = findPage(address >>> PAGE_BITS);
+    return page == null ? 0 : page.cells[(int) (address & PAGE_MASK)];
+  }
+
+  private void writeSlow(long address, long value) {
+    checkAddress(address, "write");
+    if (address < image.length) {
+      image = image.clone(); // Shared with a fork or the ROM
+      writable = image;
+      image[(int) address] = value;
+      dirty[(int) address >>> 6] |= 1L << address;
+      return;
+    }
+    if (address < denseLimit) {
+      grow((int) address + 1);
+      image[(int) address] = value;
+      dirty[(int) address >>> 6] |= 1L << address;
+      return;
+    }
+
+    final long pageNumber = address >>> PAGE_BITS;
+    Page page = findPage(pageNumber);
+    if (page == null && pages.size() >= pageLimit) {
+      throw new RuntimeException("Memory limit of " + pageLimit + " pages exceeded at " + address);
+    }
+    if (page == null || page.shared) {
+      page = page == null ? new Page(new long[PAGE_SIZE]) : new Page(page.cells.clone());
+      pages.put(pageNumber, page);
+      lastPageNumber = pageNumber;
+      lastPage = page;
+    }
+    page.cells[(int) (address & PAGE_MASK)] = value;
+  }
+
+  private Page findPage(long pageNumber) {
+    if (pageNumber != lastPageNumber) {
+      Page page = pages.get(pageNumber);
+      if (page == null) {
+        return null;
+      }
+      lastPageNumber = pageNumber;
+      lastPage = page;
+    }
+    return lastPage;
+  }
+
+  private void grow(int minimumSize) {
+    int newSize = Math.max(minimumSize, Math.min(denseLimit, Math.max(16, image.length * 2)));
+    long[] grown = new long[newSize];
+    System.arraycopy(image, 0, grown, 0, image.length);
+    image = grown;
+    writable = image;
+    if (dirty.length < wordsFor(newSize)) {
+      dirty = Arrays.copyOf(dirty, wordsFor(newSize));
+    }
+  }
+
+  private void clearPages() {
+    pages.clear();
+    for (Map.Entry<Long, long[]> entry : romPages.entrySet()) {
+      Page page = new Page(entry.getValue());
+      page.shared = true; // Copied before it is written, like a page shared with a fork
+      pages.put(entry.getKey(), page);
+    }
+    lastPageNumber = -1;
+    lastPage = null;
+  }
+
+  private static int wordsFor(int cells) {
+    return (cells + 63) >>> 6;
+  }
+
+  private static void checkAddress(long address, String access) {
+    if (address < 0) {
+      throw new ArrayIndexOutOfBoundsException(
+          "Cannot " + access + " memory at negative positions: " + address);
+    }
+  }
+
+  private static class Page {
+    final long[] cells;
+    boolean shared = false; // Set once the page is visible to more than one memory
+
+    Page(long[] cells) {
+      this.cells = cells;
+    }
+  }
+}
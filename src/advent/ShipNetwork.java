@@ -0,0 +1,245 @@
+package advent;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A graph of {@link ShipComputer}s whose outputs feed each other's inputs, run concurrently on a
+ * work-stealing pool.
+ *
+ * <p>Each computer runs as a pool task until it halts or needs input that hasn't arrived yet, at
+ * which point the task simply ends. It is resubmitted once another computer (or the caller) sends
+ * it something, so a starved computer never occupies a pool thread. The network is finished when
+ * no computer can make progress: either every one of them has halted, or the remaining ones are
+ * all waiting for input nobody is going to send (a deadlock).
+ *
+ * <p>Supported topologies:
+ *
+ * <ul>
+ *   <li>{@link #connect}: every output of one computer becomes input to another. This covers
+ *       chains and feedback loops, and connecting one computer to several gives a broadcast.
+ *   <li>{@link #route}: outputs are grouped into fixed-size packets whose first value is the id of
+ *       the destination computer, which receives the rest of the packet. Packets to unknown ids
+ *       land in a {@link #getMailbox mailbox}, e.g. for a NAT to inspect from {@link #onIdle}.
+ * </ul>
+ *
+ * Outputs from a computer with no connections stay in its own output queue.
+ */
+public class ShipNetwork {
+  public enum Outcome {
+    /** Every computer has halted. */
+    HALTED,
+    /** At least one computer is still waiting for input, but nothing is left to provide it. */
+    DEADLOCKED
+  }
+
+  private final List<Node> nodes = new ArrayList<>();
+  private final Map<Long, LongChannel> mailboxes = new HashMap<>();
+  private final AtomicInteger activeTasks = new AtomicInteger();
+  private BooleanSupplier idleHandler = () -> false;
+
+  private ForkJoinPool pool;
+  private CompletableFuture<Outcome> completion;
+
+  /** Adds a computer to the network, returning its id. */
+  public int add(ShipComputer computer) {
+    nodes.add(new Node(computer));
+    return nodes.size() - 1;
+  }
+
+  public ShipComputer getComputer(int id) {
+    return nodes.get(id).computer;
+  }
+
+  /** Sends every output of computer {@code from} to computer {@code to}. */
+  public void connect(int from, int to) {
+    nodes.get(from).targets.add(nodes.get(to));
+  }
+
+  /**
+   * Treats the output of computer {@code from} as packets of {@code packetSize} values, each
+   * addressed to the computer whose id is its first value.
+   */
+  public void route(int from, int packetSize) {
+    if (packetSize < 2) {
+      throw new IllegalArgumentException("Packets need an address and a payload: " + packetSize);
+    }
+    nodes.get(from).packet = new long[packetSize];
+  }
+
+  /** Returns the mailbox collecting routed packets (minus the address) sent to an unknown id. */
+  public synchronized LongChannel getMailbox(long address) {
+    return mailboxes.computeIfAbsent(address, a -> new LongChannel());
+  }
+
+  /**
+   * Sets a handler to run whenever the network has gone idle. If it returns {@code true} (having
+   * sent more input with {@link #send}) the network carries on, otherwise the run ends.
+   */
+  public void onIdle(BooleanSupplier idleHandler) {
+    this.idleHandler = idleHandler;
+  }
+
+  /** Queues input for a computer, waking it up if the network is running. */
+  public void send(int id, long value) {
+    Node node = nodes.get(id);
+    synchronized (node.mailbox) {
+      node.mailbox.add(value);
+    }
+    if (pool != null) {
+      node.signal();
+    }
+  }
+
+  /** Returns the most recent value output by the given computer, or 0 if there hasn't been one. */
+  public long getLastOutput(int id) {
+    return nodes.get(id).lastOutput;
+  }
+
+  public Outcome run() {
+    return run(ForkJoinPool.commonPool());
+  }
+
+  /** Runs every computer until the network halts or deadlocks. */
+  public Outcome run(ForkJoinPool pool) {
+    this.pool = pool;
+    completion = new CompletableFuture<>();
+
+    // Hold off completion until every computer has had its first chance to run
+    activeTasks.set(1);
+    for (Node node : nodes) {
+      node.signal();
+    }
+    taskFinished();
+
+    try {
+      return completion.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException("Network computer failed", e.getCause());
+    } finally {
+      this.pool = null;
+    }
+  }
+
+  private void taskFinished() {
+    while (activeTasks.decrementAndGet() == 0) {
+      // Nothing is running or about to run, so the network is idle. The extra count stops anything
+      // the idle handler sends from completing the run underneath us.
+      activeTasks.incrementAndGet();
+      final boolean resumed;
+      try {
+        resumed = idleHandler.getAsBoolean();
+      } catch (RuntimeException e) {
+        completion.completeExceptionally(e);
+        return;
+      }
+
+      if (!resumed) {
+        boolean allHalted = nodes.stream().allMatch(n -> n.halted);
+        completion.complete(allHalted ? Outcome.HALTED : Outcome.DEADLOCKED);
+        return;
+      }
+    }
+  }
+
+  private class Node {
+    final ShipComputer computer;
+    final LongChannel mailbox = new LongChannel(); // Guarded by itself
+    final List<Node> targets = new ArrayList<>();
+    final AtomicInteger signals = new AtomicInteger();
+    long[] packet; // Only present for routing computers
+    int packetSize = 0;
+    volatile boolean halted = false;
+    volatile long lastOutput = 0;
+
+    Node(ShipComputer computer) {
+      this.computer = computer;
+    }
+
+    /** Makes sure the computer runs (again) soon. Only one task per computer exists at a time. */
+    void signal() {
+      if (signals.getAndIncrement() == 0) {
+        activeTasks.incrementAndGet();
+        pool.execute(this::runTask);
+      }
+    }
+
+    private void runTask() {
+      try {
+        int seen;
+        do {
+          seen = signals.get();
+          step();
+        } while (signals.addAndGet(-seen) != 0);
+      } catch (RuntimeException e) {
+        completion.completeExceptionally(e);
+      } finally {
+        taskFinished();
+      }
+    }
+
+    private void step() {
+      if (halted) {
+        return;
+      }
+      synchronized (mailbox) {
+        mailbox.drainTo(computer.getInput());
+      }
+
+      halted = !computer.execute();
+
+      LongChannel output = computer.getOutput();
+      if (!output.isEmpty()) {
+        lastOutput = output.get(output.size() - 1);
+      }
+      if (packet != null) {
+        while (!output.isEmpty()) {
+          packet[packetSize++] = output.remove();
+          if (packetSize == packet.length) {
+            deliverPacket();
+            packetSize = 0;
+          }
+        }
+      } else if (!targets.isEmpty() && !output.isEmpty()) {
+        // Only wake targets with something to read, or two idle computers would wake each other
+        for (Node target : targets) {
+          synchronized (target.mailbox) {
+            target.mailbox.addAll(output);
+          }
+          target.signal();
+        }
+        output.clear();
+      }
+    }
+
+    private void deliverPacket() {
+      final long address = packet[0];
+      if (address >= 0 && address < nodes.size()) {
+        Node target = nodes.get((int) address);
+        synchronized (target.mailbox) {
+          for (int i = 1; i < packet.length; i++) {
+            target.mailbox.add(packet[i]);
+          }
+        }
+        target.signal();
+      } else {
+        LongChannel mailbox = getMailbox(address);
+        synchronized (mailbox) {
+          for (int i = 1; i < packet.length; i++) {
+            mailbox.add(packet[i]);
+          }
+        }
+      }
+    }
+  }
+}
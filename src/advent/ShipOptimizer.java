@@ -0,0 +1,199 @@
+package advent;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+
+/**
+ * Static peephole pass over a freshly loaded program. Starting from address 0, it follows every
+ * statically known branch to build a control-flow graph of the instructions that can be reached,
+ * then rewrites common idioms in the decoded instruction cache as superinstructions:
+ *
+ * <ul>
+ *   <li>A LESS THAN or EQUALS into some cell, immediately followed by a JUMP IF TRUE/FALSE on that
+ *       same cell, becomes one compare-and-branch.
+ *   <li>An ADD of an immediate value to a cell, storing back into that same cell (a loop counter)
+ *       becomes an in-place increment.
+ * </ul>
+ *
+ * A fused instruction is only safe for as long as none of the cells it was built from change, and
+ * those cells can be written by the program or from outside (e.g. patching in a noun and verb
+ * before running), so every one of them is guarded: the returned array maps each cell to the
+ * address of the fused instruction plus one, and {@link ShipComputer} drops the fused form as soon
+ * as one is written.
+ */
+class ShipOptimizer {
+  static final int LESS_THAN_JUMP_IF_TRUE = 100;
+  static final int LESS_THAN_JUMP_IF_FALSE = 101;
+  static final int EQUALS_JUMP_IF_TRUE = 102;
+  static final int EQUALS_JUMP_IF_FALSE = 103;
+  static final int INCREMENT = 104;
+
+  private static final int COMPARE_JUMP_LENGTH = 7;
+  private static final int INCREMENT_LENGTH = 4;
+
+  private final ShipMemory memory;
+  private final int size;
+
+  private final BitSet reachable = new BitSet(); // Addresses where reachable instructions start
+
+  private ShipOptimizer(ShipMemory memory, int size) {
+    this.memory = memory;
+    this.size = size;
+  }
+
+  /**
+   * Fuses idioms found in the first {@code decoded.length} cells of memory, writing the
+   * superinstructions into {@code decoded}. Returns the guard array described above, or {@code
+   * null} if nothing was fused.
+   */
+  static int[] optimize(ShipMemory memory, int[] decoded) {
+    ShipOptimizer optimizer = new ShipOptimizer(memory, decoded.length);
+    optimizer.buildControlFlowGraph();
+    return optimizer.fuse(decoded);
+  }
+
+  private int instructionAt(int address) {
+    return ShipComputer.decodeInstruction(memory.read(address));
+  }
+
+  private long operand(int address, int index) {
+    return memory.read(address + index + 1);
+  }
+
+  private void buildControlFlowGraph() {
+    Deque<Integer> pending = new ArrayDeque<>();
+    pending.add(0);
+
+    while (!pending.isEmpty()) {
+      int address = pending.remove();
+      while (address >= 0 && address < size && !reachable.get(address)) {
+        final int instruction = instructionAt(address);
+        final int length = length(instruction & ShipComputer.OPCODE_MASK);
+        if (length == 0 || address + length > size) {
+          break; // Halts, or isn't code we understand
+        }
+        reachable.set(address);
+
+        final int opCode = instruction & ShipComputer.OPCODE_MASK;
+        if (opCode == 5 || opCode == 6) { // JUMP IF TRUE/FALSE
+          if (ShipComputer.getMode(instruction, 1) == 1) {
+            pending.add((int) Math.max(-1, Math.min(size, operand(address, 1))));
+          }
+          if (isUnconditional(instruction, address)) {
+            break;
+          }
+        }
+        address += length;
+      }
+    }
+  }
+
+  private boolean isUnconditional(int jump, int address) {
+    if (ShipComputer.getMode(jump, 0) != 1) {
+      return false;
+    }
+    final boolean condition = operand(address, 0) != 0;
+    return condition == ((jump & ShipComputer.OPCODE_MASK) == 5);
+  }
+
+  private int[] fuse(int[] decoded) {
+    int[] guards = null;
+    int fusedEnd = 0; // A cell can only guard one fused instruction, so they mustn't overlap
+
+    for (int address = reachable.nextSetBit(fusedEnd);
+        address >= 0;
+        address = reachable.nextSetBit(Math.max(address + 1, fusedEnd))) {
+      final int instruction = instructionAt(address);
+      int fused = fuseCompareJump(instruction, address);
+      int length = COMPARE_JUMP_LENGTH;
+      if (fused == 0) {
+        fused = fuseIncrement(instruction, address);
+        length = INCREMENT_LENGTH;
+      }
+      if (fused == 0) {
+        continue;
+      }
+
+      decoded[address] = fused;
+      fusedEnd = address + length;
+      if (guards == null) {
+        guards = new int[size];
+      }
+      // The first cell needs no guard, since writing it already drops its cache entry
+      for (int cell = address + 1; cell < address + length; cell++) {
+        guards[cell] = address + 1;
+      }
+    }
+
+    return guards;
+  }
+
+  private int fuseCompareJump(int compare, int address) {
+    final int compareOpCode = compare & ShipComputer.OPCODE_MASK;
+    if ((compareOpCode != 7 && compareOpCode != 8)
+        || !reachable.get(address + 4)
+        || address + COMPARE_JUMP_LENGTH > size) {
+      return 0;
+    }
+
+    final int jump = instructionAt(address + 4);
+    final int jumpOpCode = jump & ShipComputer.OPCODE_MASK;
+    final long cell = operand(address, 2);
+    if ((jumpOpCode != 5 && jumpOpCode != 6)
+        || ShipComputer.getMode(compare, 0) > 2
+        || ShipComputer.getMode(compare, 1) > 2
+        || ShipComputer.getMode(compare, 2) != 0
+        || ShipComputer.getMode(jump, 0) != 0
+        || ShipComputer.getMode(jump, 1) > 2
+        || operand(address + 4, 0) != cell
+        || (cell >= address && cell < address + COMPARE_JUMP_LENGTH)) {
+      return 0;
+    }
+
+    final int opCode =
+        compareOpCode == 7
+            ? (jumpOpCode == 5 ? LESS_THAN_JUMP_IF_TRUE : LESS_THAN_JUMP_IF_FALSE)
+            : (jumpOpCode == 5 ? EQUALS_JUMP_IF_TRUE : EQUALS_JUMP_IF_FALSE);
+    // The jump target's mode rides along as a fourth parameter mode
+    return (compare & ~ShipComputer.OPCODE_MASK)
+        | opCode
+        | (ShipComputer.getMode(jump, 1) << ShipComputer.modeShift(3));
+  }
+
+  private int fuseIncrement(int add, int address) {
+    if ((add & ShipComputer.OPCODE_MASK) != 1) {
+      return 0;
+    }
+
+    final int mode = ShipComputer.getMode(add, 2);
+    final int counter = ShipComputer.getMode(add, 0) == 1 ? 1 : 0; // The non-immediate operand
+    if ((mode != 0 && mode != 2)
+        || ShipComputer.getMode(add, 1 - counter) != 1
+        || ShipComputer.getMode(add, counter) != mode
+        || operand(address, counter) != operand(address, 2)) {
+      return 0;
+    }
+
+    return (add & ~ShipComputer.OPCODE_MASK) | INCREMENT;
+  }
+
+  private static int length(int opCode) {
+    switch (opCode) {
+      case 1:
+      case 2:
+      case 7:
+      case 8:
+        return 4;
+      case 3:
+      case 4:
+      case 9:
+        return 2;
+      case 5:
+      case 6:
+        return 3;
+      default:
+        return 0;
+    }
+  }
+}
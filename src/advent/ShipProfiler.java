@@ -0,0 +1,200 @@
+package advent;
+
+import java.util.stream.IntStream;
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Execution statistics for a single {@link ShipComputer}, collected once {@link
+ * ShipComputer#enableProfiler()} has been called. While profiling, the computer runs through a
+ * separate instrumented loop (and bypasses any compiled code), so unprofiled computers pay nothing.
+ *
+ * <p>Besides the counters available here, every {@code execute()} call is emitted as a JFR event
+ * ({@code advent.ShipComputer.Execute}) which shows up in any flight recording that is running.
+ */
+public class ShipProfiler {
+  private static final int HOT_ADDRESSES_REPORTED = 10;
+
+  // Number of parameters taken by each opcode
+  private static final int[] PARAMETER_COUNTS = {0, 3, 3, 1, 1, 2, 2, 3, 3, 1};
+
+  private final long[] opCodeCounts = new long[100];
+  private final long[] addressHits; // Covers the loaded program; anything beyond is only totalled
+  private long instructionsRetired = 0;
+  private long peakAddress;
+  private long inputStarvations = 0;
+  private long executeCalls = 0;
+  private long totalNanos = 0;
+  private long maxNanos = 0;
+
+  ShipProfiler(int codeSize) {
+    addressHits = new long[codeSize];
+    peakAddress = codeSize - 1;
+  }
+
+  /** Equivalent to {@link ShipComputer#execute()}, recording statistics along the way. */
+  boolean execute(ShipComputer computer) {
+    ExecuteEvent event = new ExecuteEvent();
+    event.begin();
+    final long start = System.nanoTime();
+    final long retiredBefore = instructionsRetired;
+
+    int state = ShipComputer.RUNNING;
+    try {
+      while (state == ShipComputer.RUNNING) {
+        final long address = computer.instructionPointer;
+        if (address < 0) {
+          throw new RuntimeException("Instruction pointer out of bounds");
+        }
+        // Decoded afresh rather than through the cache, which may hold superinstructions
+        final int instruction = ShipComputer.decodeInstruction(computer.readMemory(address));
+        final long relativeBase = computer.relativeBase;
+
+        state = computer.step(instruction);
+        if (state != ShipComputer.AWAITING_INPUT) {
+          record(computer, address, instruction, relativeBase);
+        }
+      }
+    } finally {
+      final long elapsed = System.nanoTime() - start;
+      executeCalls++;
+      totalNanos += elapsed;
+      maxNanos = Math.max(maxNanos, elapsed);
+      if (state == ShipComputer.AWAITING_INPUT) {
+        inputStarvations++;
+      }
+
+      event.instructions = instructionsRetired - retiredBefore;
+      event.instructionPointer = computer.instructionPointer;
+      event.awaitingInput = state == ShipComputer.AWAITING_INPUT;
+      event.commit();
+    }
+
+    return state == ShipComputer.AWAITING_INPUT;
+  }
+
+  private void record(ShipComputer computer, long address, int instruction, long relativeBase) {
+    final int opCode = instruction & ShipComputer.OPCODE_MASK;
+    instructionsRetired++;
+    opCodeCounts[opCode]++;
+    if (address < addressHits.length) {
+      addressHits[(int) address]++;
+    }
+
+    // Operands are re-read after the fact. This can only differ from what actually executed if an
+    // instruction overwrote its own operands, which would at worst skew the peak address.
+    final int parameters = opCode < PARAMETER_COUNTS.length ? PARAMETER_COUNTS[opCode] : 0;
+    long peak = Math.max(peakAddress, address + parameters);
+    for (int i = 0; i < parameters; i++) {
+      final long parameter = computer.readMemory(address + i + 1);
+      switch (ShipComputer.getMode(instruction, i)) {
+        case 0: // Position mode
+          peak = Math.max(peak, parameter);
+          break;
+        case 2: // Relative mode
+          peak = Math.max(peak, relativeBase + parameter);
+          break;
+        default:
+      }
+    }
+    peakAddress = peak;
+  }
+
+  public long getInstructionsRetired() {
+    return instructionsRetired;
+  }
+
+  /** Returns how many times the given opcode (e.g. 1 for ADD) has been executed. */
+  public long getOpCodeCount(int opCode) {
+    return opCodeCounts[opCode];
+  }
+
+  /** Returns how many times the instruction at the given address has been executed. */
+  public long getAddressHits(long address) {
+    return address >= 0 && address < addressHits.length ? addressHits[(int) address] : 0;
+  }
+
+  /** Returns the highest memory address read, written or executed so far. */
+  public long getPeakAddress() {
+    return peakAddress;
+  }
+
+  /** Returns the number of {@code execute()} calls which ended waiting for input. */
+  public long getInputStarvations() {
+    return inputStarvations;
+  }
+
+  public long getExecuteCalls() {
+    return executeCalls;
+  }
+
+  public long getTotalNanos() {
+    return totalNanos;
+  }
+
+  public long getMaxNanos() {
+    return maxNanos;
+  }
+
+  /** Returns the statistics collected so far as a JSON object. */
+  public String report() {
+    StringBuilder builder = new StringBuilder("{\n");
+    builder.append("  \"instructionsRetired\": ").append(instructionsRetired).append(",\n");
+    builder.append("  \"peakAddress\": ").append(peakAddress).append(",\n");
+    builder.append("  \"inputStarvations\": ").append(inputStarvations).append(",\n");
+    builder.append("  \"executeCalls\": ").append(executeCalls).append(",\n");
+    builder.append("  \"totalNanos\": ").append(totalNanos).append(",\n");
+    builder.append("  \"maxNanos\": ").append(maxNanos).append(",\n");
+
+    builder.append("  \"opCodes\": {");
+    String separator = "";
+    for (int opCode = 0; opCode < opCodeCounts.length; opCode++) {
+      if (opCodeCounts[opCode] > 0) {
+        builder.append(separator).append('"').append(opCode).append("\": ");
+        builder.append(opCodeCounts[opCode]);
+        separator = ", ";
+      }
+    }
+    builder.append("},\n");
+
+    builder.append("  \"hotAddresses\": [");
+    separator = "";
+    int[] hottest =
+        IntStream.range(0, addressHits.length)
+            .filter(a -> addressHits[a] > 0)
+            .boxed()
+            .sorted((a, b) -> Long.compare(addressHits[b], addressHits[a]))
+            .limit(HOT_ADDRESSES_REPORTED)
+            .mapToInt(Integer::intValue)
+            .toArray();
+    for (int address : hottest) {
+      builder.append(separator).append("{\"address\": ").append(address);
+      builder.append(", \"hits\": ").append(addressHits[address]).append('}');
+      separator = ", ";
+    }
+    builder.append("]\n}");
+
+    return builder.toString();
+  }
+
+  @Override
+  public String toString() {
+    return report();
+  }
+
+  @Name("advent.ShipComputer.Execute")
+  @Label("Intcode Execution")
+  @Category("Advent of Code")
+  private static class ExecuteEvent extends Event {
+    @Label("Instructions Retired")
+    long instructions;
+
+    @Label("Instruction Pointer")
+    long instructionPointer;
+
+    @Label("Awaiting Input")
+    boolean awaitingInput;
+  }
+}
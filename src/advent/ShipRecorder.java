@@ -0,0 +1,139 @@
+package advent;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+
+/**
+ * Records an execution trace of a single {@link ShipComputer}, once {@link
+ * ShipComputer#enableRecorder} has been called. The trace holds every value input and output, each
+ * tagged with the number of instructions retired before it, plus periodic checkpoints of the full
+ * machine state. {@link ShipTrace} reads it back and can jump to any recorded I/O point from the
+ * nearest checkpoint.
+ *
+ * <p>Instruction counts are relative to when recording started, and a checkpoint is always taken
+ * right away, so the trace is self-contained. Counting is done over plain instructions (never
+ * superinstructions or compiled blocks), so counts don't depend on which tiers were enabled.
+ *
+ * <p>The format is a header (magic, version and checkpoint interval) followed by records, each
+ * starting with a tag byte. Counts are stored as unsigned varint deltas from the previous record
+ * and values as zigzag varints, so a typical I/O event takes 3 or 4 bytes. A checkpoint holds its
+ * {@link ShipComputer#writeState state} prefixed by its length.
+ */
+public class ShipRecorder {
+  static final int MAGIC = 0x4943_5452; // "ICTR"
+  static final int VERSION = 1;
+
+  static final int INPUT = 1;
+  static final int OUTPUT = 2;
+  static final int CHECKPOINT = 3;
+  static final int HALT = 4;
+
+  private final DataOutputStream out;
+  private final long checkpointInterval;
+  private long instructionsRetired = 0;
+  private long lastRecordCount = 0;
+  private long nextCheckpoint = 0;
+
+  ShipRecorder(OutputStream out, long checkpointInterval) throws IOException {
+    if (checkpointInterval <= 0) {
+      throw new IllegalArgumentException("Checkpoint interval must be positive");
+    }
+    this.out = new DataOutputStream(new BufferedOutputStream(out));
+    this.checkpointInterval = checkpointInterval;
+    this.out.writeInt(MAGIC);
+    this.out.writeInt(VERSION);
+    this.out.writeLong(checkpointInterval);
+  }
+
+  /** Equivalent to {@link ShipComputer#execute()}, recording the trace along the way. */
+  boolean execute(ShipComputer computer) {
+    try {
+      while (true) {
+        final long address = computer.instructionPointer;
+        if (address < 0) {
+          throw new RuntimeException("Instruction pointer out of bounds");
+        }
+        if (instructionsRetired >= nextCheckpoint) {
+          checkpoint(computer);
+        }
+
+        final int instruction = ShipComputer.decodeInstruction(computer.readMemory(address));
+        final int state;
+        switch (instruction & ShipComputer.OPCODE_MASK) {
+          case 3: // INPUT
+            if (!computer.hasInputReady()) {
+              // Waits without touching its target, which may not even be valid
+              state = computer.step(instruction);
+              break;
+            }
+            final long target = computer.parameterAddress(instruction, 0);
+            state = computer.step(instruction);
+            writeEvent(INPUT, computer.readMemory(target));
+            break;
+          case 4: // OUT
+            final long value = computer.readParameter(instruction, 0);
+            state = computer.step(instruction);
+            writeEvent(OUTPUT, value);
+            break;
+          default:
+            state = computer.step(instruction);
+        }
+
+        if (state == ShipComputer.AWAITING_INPUT) {
+          out.flush();
+          return true;
+        }
+        if (state == ShipComputer.HALTED) {
+          writeRecord(HALT);
+          out.flush();
+          return false;
+        }
+        instructionsRetired++;
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  public long getInstructionsRetired() {
+    return instructionsRetired;
+  }
+
+  /** Pushes anything buffered so far to the underlying stream. */
+  public void flush() throws IOException {
+    out.flush();
+  }
+
+  private void checkpoint(ShipComputer computer) throws IOException {
+    ByteArrayOutputStream state = new ByteArrayOutputStream();
+    computer.writeState(new DataOutputStream(state));
+
+    writeRecord(CHECKPOINT);
+    out.writeInt(state.size());
+    state.writeTo(out);
+    nextCheckpoint = instructionsRetired + checkpointInterval;
+  }
+
+  private void writeEvent(int tag, long value) throws IOException {
+    writeRecord(tag);
+    writeVarLong(out, (value << 1) ^ (value >> 63));
+  }
+
+  private void writeRecord(int tag) throws IOException {
+    out.writeByte(tag);
+    writeVarLong(out, instructionsRetired - lastRecordCount);
+    lastRecordCount = instructionsRetired;
+  }
+
+  private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+    while ((value & ~0x7FL) != 0) {
+      out.writeByte((int) (value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte((int) value);
+  }
+}
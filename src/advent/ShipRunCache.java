@@ -0,0 +1,124 @@
+package advent;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Memoizes complete runs of Intcode programs which only depend on their input, i.e. a program is
+ * given a fixed sequence of inputs up front and runs until it halts. Results are keyed on the
+ * program plus the inputs (looked up by the program's {@link ProgramImage#hash() hash}, but
+ * compared in full), and the least recently used ones are evicted once the cache is full.
+ *
+ * <p>Only runs that halt are cached. A run which stops to wait for more input still returns what
+ * it output, but is repeated in full next time. Thread-safe; concurrent misses on the same key may
+ * both run the program, which is harmless.
+ */
+public class ShipRunCache {
+  private static final int SHARED_CAPACITY = 4096;
+  private static final ShipRunCache SHARED = new ShipRunCache(SHARED_CAPACITY);
+
+  private final Map<Key, long[]> results; // Guarded by itself
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  public ShipRunCache(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+    }
+    results =
+        new LinkedHashMap<>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<Key, long[]> eldest) {
+            return size() > capacity;
+          }
+        };
+  }
+
+  /** Returns the cache shared by every day's solution. */
+  public static ShipRunCache shared() {
+    return SHARED;
+  }
+
+  /** Runs the program with the given inputs, returning everything it output. */
+  public long[] run(ProgramImage program, long... inputs) {
+    Key key = new Key(program, inputs.clone());
+    long[] outputs;
+    synchronized (results) {
+      outputs = results.get(key);
+    }
+    if (outputs != null) {
+      hits.increment();
+      return outputs.clone();
+    }
+
+    misses.increment();
+    ShipComputer computer = new ShipComputer(program);
+    computer.enableIntTier();
+    for (long input : inputs) {
+      computer.addInput(input);
+    }
+    final boolean halted = !computer.execute();
+    outputs = computer.getOutput().toArray();
+
+    if (halted) {
+      synchronized (results) {
+        results.put(key, outputs.clone());
+      }
+    }
+    return outputs;
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  public int size() {
+    synchronized (results) {
+      return results.size();
+    }
+  }
+
+  public void clear() {
+    synchronized (results) {
+      results.clear();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "ShipRunCache{hits=" + getHits() + ", misses=" + getMisses() + ", size=" + size() + "}";
+  }
+
+  private static class Key {
+    final ProgramImage program;
+    final long[] inputs;
+
+    Key(ProgramImage program, long[] inputs) {
+      this.program = program;
+      this.inputs = inputs;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return program.hash() == other.program.hash()
+          && Arrays.equals(inputs, other.inputs)
+          && (program == other.program
+              || Arrays.equals(program.values(), other.program.values()));
+    }
+
+    @Override
+    public int hashCode() {
+      return Long.hashCode(program.hash()) * 31 + Arrays.hashCode(inputs);
+    }
+  }
+}
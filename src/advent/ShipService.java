@@ -0,0 +1,362 @@
+package advent;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs Intcode programs on behalf of clients connecting over a local TCP or Unix-domain socket, so
+ * that many evaluations share one warm JVM instead of paying for startup and JIT warm-up each time.
+ * Computers are kept in a {@link ShipComputerPool} per program (with the compiler enabled), and
+ * every run is limited to an instruction budget and a number of memory pages so a runaway program
+ * only costs its own client. A client which leaves a request unfinished for too long is
+ * disconnected, rather than holding on to a worker.
+ *
+ * <p>A connection carries any number of requests, each answered in turn. All integers are unsigned
+ * varints and all Intcode values zigzag varints (as in {@link ShipRecorder}). A request starts
+ * with a type byte:
+ *
+ * <ul>
+ *   <li>{@code RUN}: budget (0 for the service default), program length, program, input count,
+ *       inputs. The response is an {@code OUTPUT} record (tag byte plus value) for every value
+ *       output, streamed as the program runs, then either {@code DONE} with the {@link
+ *       ShipComputer.Outcome} ordinal as a byte and the number of instructions run, or {@code
+ *       ERROR} with a message in modified UTF-8.
+ *   <li>{@code STATS}: the response is {@link #report()} in modified UTF-8.
+ * </ul>
+ *
+ * <p>{@link ShipServiceClient} speaks the other side of the protocol.
+ */
+public class ShipService implements Closeable {
+  static final int RUN = 1;
+  static final int STATS = 2;
+
+  static final int OUTPUT = 1;
+  static final int DONE = 2;
+  static final int ERROR = 3;
+
+  private static final long DEFAULT_BUDGET = 100_000_000;
+  private static final int MAX_PAGES = 1 << 11; // 16 MB of sparse memory per run
+  private static final long READ_TIMEOUT_SECONDS = 30;
+  private static final int MAX_PROGRAM_LENGTH = 1 << 20;
+  private static final int MAX_INPUTS = 1 << 20;
+  private static final int MAX_PROGRAMS = 64; // Programs with a pool of warm computers
+  private static final int LATENCY_WINDOW = 1 << 16; // Requests kept for percentiles
+  private static final long REPORT_INTERVAL_SECONDS = 10;
+
+  private final SocketAddress address;
+  private final ServerSocketChannel server;
+  private final int threads;
+  private final ExecutorService workers;
+  private final ScheduledThreadPoolExecutor timeouts;
+  private final Map<Long, ShipComputerPool> pools; // Guarded by itself
+
+  private final long startNanos = System.nanoTime();
+  private final LongAdder requests = new LongAdder();
+  private final LongAdder instructions = new LongAdder();
+  private final long[] latencies = new long[LATENCY_WINDOW]; // Ring buffer, guarded by itself
+  private long latencyCount = 0;
+
+  public ShipService(SocketAddress address, int threads) throws IOException {
+    if (address instanceof UnixDomainSocketAddress) {
+      Files.deleteIfExists(((UnixDomainSocketAddress) address).getPath()); // Left by a crash
+      server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+    } else {
+      server = ServerSocketChannel.open();
+    }
+    server.bind(address);
+    this.address = server.getLocalAddress();
+    this.threads = threads;
+    workers = Executors.newFixedThreadPool(threads);
+    timeouts =
+        new ScheduledThreadPoolExecutor(
+            1,
+            runnable -> {
+              Thread thread = new Thread(runnable, "ShipService-timeouts");
+              thread.setDaemon(true);
+              return thread;
+            });
+    timeouts.setRemoveOnCancelPolicy(true); // Most requests arrive well within their timeout
+    pools =
+        new LinkedHashMap<>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<Long, ShipComputerPool> eldest) {
+            return size() > MAX_PROGRAMS;
+          }
+        };
+  }
+
+  /**
+   * Starts a service on the given port (on the loopback interface) or Unix-domain socket path, and
+   * prints its statistics every few seconds: {@code ShipService <port|path> [threads]}.
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1) {
+      System.err.println("Usage: ShipService <port|socket path> [threads]");
+      System.exit(1);
+    }
+    final int threads =
+        args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+    ShipService service = new ShipService(parseAddress(args[0]), threads);
+    System.out.println("Listening on " + service.getAddress() + " with " + threads + " threads");
+    Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "ShipService-report");
+              thread.setDaemon(true);
+              return thread;
+            })
+        .scheduleAtFixedRate(
+            () -> System.out.println(service.report()),
+            REPORT_INTERVAL_SECONDS,
+            REPORT_INTERVAL_SECONDS,
+            TimeUnit.SECONDS);
+    service.serve();
+  }
+
+  /** Parses a port number as a loopback address, and anything else as a Unix-domain socket. */
+  static SocketAddress parseAddress(String address) {
+    if (address.matches("\\d+")) {
+      return new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(address));
+    }
+    return UnixDomainSocketAddress.of(address);
+  }
+
+  public SocketAddress getAddress() {
+    return address;
+  }
+
+  /**
+   * Accepts connections until the service is closed. Each connection is handled by one of the
+   * worker threads, so connections beyond that wait for a free worker.
+   */
+  public void serve() throws IOException {
+    try {
+      while (true) {
+        SocketChannel connection = server.accept();
+        workers.execute(() -> handle(connection));
+      }
+    } catch (ClosedChannelException e) {
+      // Closed by close()
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    server.close();
+    workers.shutdownNow();
+    timeouts.shutdownNow();
+    if (address instanceof UnixDomainSocketAddress) {
+      Files.deleteIfExists(((UnixDomainSocketAddress) address).getPath());
+    }
+  }
+
+  private void handle(SocketChannel connection) {
+    try (connection;
+        DataInputStream in =
+            new DataInputStream(new BufferedInputStream(Channels.newInputStream(connection)));
+        DataOutputStream out =
+            new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(connection)))) {
+      while (true) {
+        // Closing the connection makes the blocked read fail, which ends the loop
+        ScheduledFuture<?> timeout =
+            timeouts.schedule(
+                () -> closeQuietly(connection), READ_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        final int type = in.read();
+        if (type < 0) {
+          break;
+        }
+        switch (type) {
+          case RUN:
+            run(in, out, timeout);
+            break;
+          case STATS:
+            timeout.cancel(false);
+            out.writeUTF(report());
+            break;
+          default:
+            throw new IOException("Unknown request type: " + type);
+        }
+        out.flush();
+      }
+    } catch (IOException | RuntimeException e) {
+      // The client went away or broke the protocol (possibly with a request that only fails once
+      // it is parsed further, e.g. an empty program), either way the connection is done for
+    }
+  }
+
+  private static void closeQuietly(SocketChannel connection) {
+    try {
+      connection.close();
+    } catch (IOException e) {
+      // Nothing more to be done about it
+    }
+  }
+
+  /** Reads and runs a request, cancelling the read timeout once the request has been read. */
+  private void run(DataInputStream in, DataOutputStream out, ScheduledFuture<?> timeout)
+      throws IOException {
+    long budget = readVarLong(in);
+    final long[] program = readValues(in, MAX_PROGRAM_LENGTH);
+    final long[] inputs = readValues(in, MAX_INPUTS);
+    timeout.cancel(false);
+    if (budget == 0) {
+      budget = DEFAULT_BUDGET;
+    }
+    final long start = System.nanoTime();
+
+    ShipComputerPool pool = findPool(program);
+    ShipComputer computer = pool != null ? pool.borrow() : new ShipComputer(program);
+    try {
+      computer.enableCompiler();
+      computer.setPageLimit(MAX_PAGES);
+      for (long input : inputs) {
+        computer.addInput(input);
+      }
+      computer.setOutputSink(
+          value -> {
+            try {
+              out.writeByte(OUTPUT);
+              writeVarLong(out, (value << 1) ^ (value >> 63));
+            } catch (IOException e) {
+              throw new UncheckedIOException(e);
+            }
+          });
+
+      ShipComputer.Outcome outcome;
+      try {
+        outcome = computer.execute(budget);
+      } catch (UncheckedIOException e) {
+        throw e.getCause(); // Writing output failed, so the connection is gone
+      } catch (RuntimeException e) {
+        out.writeByte(ERROR);
+        out.writeUTF(String.valueOf(e.getMessage()));
+        return;
+      }
+      final long retired = budget - computer.budget;
+      out.writeByte(DONE);
+      out.writeByte(outcome.ordinal());
+      writeVarLong(out, retired);
+      instructions.add(retired);
+    } finally {
+      if (pool != null) {
+        pool.release(computer);
+      }
+      recordLatency(System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Returns the pool for the given program, creating it if need be. Returns null in the unlikely
+   * case that a different program with the same hash already has a pool.
+   */
+  private ShipComputerPool findPool(long[] program) {
+    final long hash = ProgramImage.hashOf(program);
+    synchronized (pools) {
+      ShipComputerPool pool = pools.get(hash);
+      if (pool == null) {
+        pool = new ShipComputerPool(ProgramImage.of(program), threads);
+        pools.put(hash, pool);
+      }
+      return Arrays.equals(pool.getProgram().values(), program) ? pool : null;
+    }
+  }
+
+  private void recordLatency(long nanos) {
+    requests.increment();
+    synchronized (latencies) {
+      latencies[(int) (latencyCount++ % LATENCY_WINDOW)] = nanos;
+    }
+  }
+
+  /**
+   * Returns a one-line summary of requests served so far: throughput, and latency percentiles over
+   * the most recent requests (measured from a request being read to its response being written).
+   */
+  public String report() {
+    long[] window;
+    synchronized (latencies) {
+      window = Arrays.copyOf(latencies, (int) Math.min(latencyCount, LATENCY_WINDOW));
+    }
+    Arrays.sort(window);
+
+    final double seconds = (System.nanoTime() - startNanos) / 1e9;
+    return String.format(
+        "%d requests (%.0f/s, %.0f instructions/s), latency p50 %s p90 %s p99 %s max %s",
+        requests.sum(),
+        requests.sum() / seconds,
+        instructions.sum() / seconds,
+        percentile(window, 0.50),
+        percentile(window, 0.90),
+        percentile(window, 0.99),
+        percentile(window, 1.00));
+  }
+
+  private static String percentile(long[] sorted, double fraction) {
+    if (sorted.length == 0) {
+      return "-";
+    }
+    final int index = (int) Math.ceil(fraction * sorted.length) - 1;
+    return String.format("%.1fus", sorted[Math.max(index, 0)] / 1e3);
+  }
+
+  private static long[] readValues(DataInputStream in, int maxLength) throws IOException {
+    final long length = readVarLong(in);
+    if (length < 0 || length > maxLength) {
+      throw new IOException("Bad number of values: " + length);
+    }
+    long[] values = new long[(int) length];
+    for (int i = 0; i < values.length; i++) {
+      final long zigzag = readVarLong(in);
+      values[i] = (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+    return values;
+  }
+
+  static void writeVarLong(DataOutputStream out, long value) throws IOException {
+    while ((value & ~0x7FL) != 0) {
+      out.writeByte((int) (value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte((int) value);
+  }
+
+  static long readVarLong(DataInputStream in) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      final int b = in.read();
+      if (b < 0) {
+        throw new EOFException("Truncated message");
+      }
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed varint");
+  }
+}
@@ -0,0 +1,138 @@
+package advent;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+/**
+ * A client for {@link ShipService}, holding a single connection. Not thread-safe; open one client
+ * per thread instead.
+ */
+public class ShipServiceClient implements Closeable {
+  private final SocketChannel connection;
+  private final DataInputStream in;
+  private final DataOutputStream out;
+
+  public ShipServiceClient(SocketAddress address) throws IOException {
+    connection = SocketChannel.open(address);
+    in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(connection)));
+    out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(connection)));
+  }
+
+  /**
+   * Runs a program against the service and hammers it with repeated requests, then prints the
+   * final result along with client and service statistics: {@code ShipServiceClient <port|path>
+   * <program file> <requests> [inputs...]}.
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 3) {
+      System.err.println(
+          "Usage: ShipServiceClient <port|socket path> <program> <requests> [inputs...]");
+      System.exit(1);
+    }
+    final long[] program = ProgramImage.load(args[1]).toLongArray();
+    final int requests = Integer.parseInt(args[2]);
+    final long[] inputs =
+        Arrays.stream(args, 3, args.length).mapToLong(Long::parseLong).toArray();
+
+    try (ShipServiceClient client = new ShipServiceClient(ShipService.parseAddress(args[0]))) {
+      Result result = null;
+      final long start = System.nanoTime();
+      for (int i = 0; i < requests; i++) {
+        result = client.run(program, 0, inputs);
+      }
+      final double seconds = (System.nanoTime() - start) / 1e9;
+
+      System.out.println(result);
+      System.out.printf(
+          "%d requests in %.3fs (%.0f round trips/s)%n", requests, seconds, requests / seconds);
+      System.out.println("Service: " + client.stats());
+    }
+  }
+
+  /**
+   * Runs a program on the service with the given inputs and instruction budget (0 for the service's
+   * default), returning everything it output and why it stopped.
+   */
+  public Result run(long[] program, long maxInstructions, long... inputs) throws IOException {
+    out.writeByte(ShipService.RUN);
+    ShipService.writeVarLong(out, maxInstructions);
+    writeValues(program);
+    writeValues(inputs);
+    out.flush();
+
+    LongChannel outputs = new LongChannel();
+    while (true) {
+      final int tag = in.readUnsignedByte();
+      switch (tag) {
+        case ShipService.OUTPUT:
+          final long zigzag = ShipService.readVarLong(in);
+          outputs.add((zigzag >>> 1) ^ -(zigzag & 1));
+          break;
+        case ShipService.DONE:
+          final ShipComputer.Outcome outcome = ShipComputer.Outcome.values()[in.readUnsignedByte()];
+          return new Result(outcome, outputs.toArray(), ShipService.readVarLong(in));
+        case ShipService.ERROR:
+          throw new RuntimeException("Service failed to run program: " + in.readUTF());
+        default:
+          throw new IOException("Unknown response tag: " + tag);
+      }
+    }
+  }
+
+  /** Returns the service's {@link ShipService#report() statistics}. */
+  public String stats() throws IOException {
+    out.writeByte(ShipService.STATS);
+    out.flush();
+    return in.readUTF();
+  }
+
+  @Override
+  public void close() throws IOException {
+    connection.close();
+  }
+
+  private void writeValues(long[] values) throws IOException {
+    ShipService.writeVarLong(out, values.length);
+    for (long value : values) {
+      ShipService.writeVarLong(out, (value << 1) ^ (value >> 63));
+    }
+  }
+
+  public static class Result {
+    private final ShipComputer.Outcome outcome;
+    private final long[] outputs;
+    private final long instructions;
+
+    Result(ShipComputer.Outcome outcome, long[] outputs, long instructions) {
+      this.outcome = outcome;
+      this.outputs = outputs;
+      this.instructions = instructions;
+    }
+
+    public ShipComputer.Outcome getOutcome() {
+      return outcome;
+    }
+
+    public long[] getOutputs() {
+      return outputs.clone();
+    }
+
+    /** Returns the number of instructions the service ran. */
+    public long getInstructions() {
+      return instructions;
+    }
+
+    @Override
+    public String toString() {
+      return outcome + " after " + instructions + " instructions: " + Arrays.toString(outputs);
+    }
+  }
+}
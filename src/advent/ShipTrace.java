@@ -0,0 +1,203 @@
+package advent;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * An execution trace written by a {@link ShipRecorder}, loaded for replay. Each I/O event is
+ * numbered from 0 in the order it happened, and {@link #seek} recreates the computer as it was just
+ * before any of them, starting from the nearest earlier checkpoint rather than from the beginning.
+ */
+public class ShipTrace {
+  private int eventCount = 0;
+  private byte[] eventKinds = new byte[64];
+  private long[] eventCounts = new long[64]; // Instructions retired before each event
+  private long[] eventValues = new long[64];
+
+  private int checkpointCount = 0;
+  private long[] checkpointCounts = new long[8];
+  private byte[][] checkpointStates = new byte[8][];
+
+  private boolean halted = false;
+  private long haltCount;
+
+  /** Reads a complete trace from the given stream. */
+  public static ShipTrace read(InputStream stream) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+    if (in.readInt() != ShipRecorder.MAGIC) {
+      throw new IOException("Not an Intcode trace");
+    }
+    final int version = in.readInt();
+    if (version != ShipRecorder.VERSION) {
+      throw new IOException("Unsupported trace version: " + version);
+    }
+    in.readLong(); // Checkpoint interval, which isn't needed for replay
+
+    ShipTrace trace = new ShipTrace();
+    long count = 0;
+    int tag;
+    while ((tag = in.read()) >= 0) {
+      count += readVarLong(in);
+      switch (tag) {
+        case ShipRecorder.INPUT:
+        case ShipRecorder.OUTPUT:
+          final long zigzag = readVarLong(in);
+          trace.addEvent(tag, count, (zigzag >>> 1) ^ -(zigzag & 1));
+          break;
+        case ShipRecorder.CHECKPOINT:
+          byte[] state = new byte[in.readInt()];
+          in.readFully(state);
+          trace.addCheckpoint(count, state);
+          break;
+        case ShipRecorder.HALT:
+          trace.halted = true;
+          trace.haltCount = count;
+          break;
+        default:
+          throw new IOException("Unknown trace record: " + tag);
+      }
+    }
+
+    if (trace.checkpointCount == 0) {
+      throw new IOException("Trace has no checkpoints");
+    }
+    return trace;
+  }
+
+  public int getEventCount() {
+    return eventCount;
+  }
+
+  /** Returns whether the given event is an input (otherwise it is an output). */
+  public boolean isInput(int event) {
+    checkEvent(event);
+    return eventKinds[event] == ShipRecorder.INPUT;
+  }
+
+  /** Returns the value input or output by the given event. */
+  public long getValue(int event) {
+    checkEvent(event);
+    return eventValues[event];
+  }
+
+  /** Returns the number of instructions retired before the given event. */
+  public long getInstructionCount(int event) {
+    checkEvent(event);
+    return eventCounts[event];
+  }
+
+  public int getCheckpointCount() {
+    return checkpointCount;
+  }
+
+  /** Returns whether the recorded program ran all the way to its END instruction. */
+  public boolean isHalted() {
+    return halted;
+  }
+
+  /** Returns the number of instructions retired before the program halted, if it did. */
+  public long getHaltCount() {
+    return haltCount;
+  }
+
+  /**
+   * Returns a new computer in the state it was in right before the given event: its instruction
+   * pointer is at the INPUT or OUT instruction responsible, and every earlier input has been
+   * consumed.
+   *
+   * <p>Only the instructions between the nearest checkpoint and the event are re-executed, fed
+   * from the recorded inputs. Their outputs are discarded, so the returned computer starts with
+   * empty input and output queues.
+   */
+  public ShipComputer seek(int event) {
+    checkEvent(event);
+    final long target = eventCounts[event];
+
+    int checkpoint = Arrays.binarySearch(checkpointCounts, 0, checkpointCount, target);
+    if (checkpoint < 0) {
+      checkpoint = -checkpoint - 2; // The last checkpoint before the target
+    }
+    final long start = checkpointCounts[checkpoint];
+
+    final ShipComputer computer;
+    try {
+      computer =
+          ShipComputer.readState(
+              new DataInputStream(new ByteArrayInputStream(checkpointStates[checkpoint])));
+    } catch (IOException e) {
+      throw new RuntimeException("Corrupt checkpoint at instruction " + start, e);
+    }
+    computer.getInput().clear();
+    computer.getOutput().clear();
+
+    int next = Arrays.binarySearch(eventCounts, 0, eventCount, start);
+    if (next < 0) {
+      next = -next - 1;
+    }
+    for (long retired = start; retired < target; retired++) {
+      if (next < eventCount && eventCounts[next] == retired) {
+        if (eventKinds[next] == ShipRecorder.INPUT) {
+          computer.addInput(eventValues[next]);
+        }
+        next++;
+      }
+
+      final int instruction =
+          ShipComputer.decodeInstruction(computer.readMemory(computer.instructionPointer));
+      if (computer.step(instruction) != ShipComputer.RUNNING) {
+        throw new RuntimeException("Trace does not match execution at instruction " + retired);
+      }
+    }
+
+    computer.getOutput().clear();
+    return computer;
+  }
+
+  private void addEvent(int kind, long count, long value) {
+    if (eventCount == eventKinds.length) {
+      eventKinds = Arrays.copyOf(eventKinds, eventCount * 2);
+      eventCounts = Arrays.copyOf(eventCounts, eventCount * 2);
+      eventValues = Arrays.copyOf(eventValues, eventCount * 2);
+    }
+    eventKinds[eventCount] = (byte) kind;
+    eventCounts[eventCount] = count;
+    eventValues[eventCount] = value;
+    eventCount++;
+  }
+
+  private void addCheckpoint(long count, byte[] state) {
+    if (checkpointCount == checkpointCounts.length) {
+      checkpointCounts = Arrays.copyOf(checkpointCounts, checkpointCount * 2);
+      checkpointStates = Arrays.copyOf(checkpointStates, checkpointCount * 2);
+    }
+    checkpointCounts[checkpointCount] = count;
+    checkpointStates[checkpointCount] = state;
+    checkpointCount++;
+  }
+
+  private void checkEvent(int event) {
+    if (event < 0 || event >= eventCount) {
+      throw new IndexOutOfBoundsException("Event " + event + " of " + eventCount);
+    }
+  }
+
+  private static long readVarLong(DataInputStream in) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      final int b = in.read();
+      if (b < 0) {
+        throw new EOFException("Truncated trace");
+      }
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed varint in trace");
+  }
+}
@@ -0,0 +1,397 @@
+package advent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Runs an Intcode program with some memory cells replaced by named variables, building up each
+ * written cell as an expression tree over those variables instead of a number. Expressions can then
+ * be simplified into a {@link Polynomial} and solved for directly.
+ *
+ * <p>Control flow has to stay concrete: the run gives up (returns {@code false}) if a jump depends
+ * on a variable, a write goes to an address that depends on a variable, or the program does any
+ * I/O. Reads from a variable address are fine, but produce an opaque {@link Load} that cannot be
+ * simplified, so any cell built from one can't be solved for either.
+ */
+public class SymbolicComputer {
+  private static final int MAX_STEPS = 1_000_000;
+
+  private final Map<Long, Expression> memory = new HashMap<>();
+  private long instructionPointer = 0;
+  private long relativeBase = 0;
+
+  public SymbolicComputer(int[] program) {
+    for (int i = 0; i < program.length; i++) {
+      memory.put((long) i, new Constant(program[i]));
+    }
+  }
+
+  public SymbolicComputer(long[] program) {
+    for (int i = 0; i < program.length; i++) {
+      memory.put((long) i, new Constant(program[i]));
+    }
+  }
+
+  /** Replaces the value at the given address with a variable. */
+  public void setVariable(long address, String name) {
+    memory.put(address, new Variable(name));
+  }
+
+  public Expression readMemory(long address) {
+    return memory.getOrDefault(address, new Constant(0));
+  }
+
+  /**
+   * Runs the program until it halts. Returns {@code false} if it had to give up because execution
+   * would depend on the value of a variable.
+   */
+  public boolean run() {
+    for (int steps = 0; steps < MAX_STEPS; steps++) {
+      final Long instruction = constantAt(instructionPointer);
+      if (instruction == null || instruction < 0) {
+        return false;
+      }
+
+      final int opCode = (int) (instruction % 100);
+      switch (opCode) {
+        case 1: // ADD
+        case 2: // MULTIPLY
+        case 7: // LESS THAN
+        case 8: // EQUALS
+          {
+            Expression first = readParameter(instruction, 0);
+            Expression second = readParameter(instruction, 1);
+            Expression result = combine(opCode, first, second);
+            if (result == null || !writeParameter(instruction, 2, result)) {
+              return false;
+            }
+            instructionPointer += 4;
+            break;
+          }
+        case 5: // JUMP IF TRUE
+        case 6: // JUMP IF FALSE
+          {
+            Expression condition = readParameter(instruction, 0);
+            Expression target = readParameter(instruction, 1);
+            if (!(condition instanceof Constant)) {
+              return false;
+            }
+            if ((((Constant) condition).value != 0) == (opCode == 5)) {
+              if (!(target instanceof Constant)) {
+                return false;
+              }
+              instructionPointer = ((Constant) target).value;
+            } else {
+              instructionPointer += 3;
+            }
+            break;
+          }
+        case 9: // ADJUST RELATIVE BASE
+          {
+            Expression adjustment = readParameter(instruction, 0);
+            if (!(adjustment instanceof Constant)) {
+              return false;
+            }
+            relativeBase += ((Constant) adjustment).value;
+            instructionPointer += 2;
+            break;
+          }
+        case 99: // END --- terminates program
+          return true;
+        default: // I/O, or anything unexpected
+          return false;
+      }
+    }
+    return false;
+  }
+
+  private Long constantAt(long address) {
+    Expression expression = readMemory(address);
+    return expression instanceof Constant ? ((Constant) expression).value : null;
+  }
+
+  private static Expression combine(int opCode, Expression first, Expression second) {
+    if (first instanceof Constant && second instanceof Constant) {
+      final long a = ((Constant) first).value;
+      final long b = ((Constant) second).value;
+      switch (opCode) {
+        case 1:
+          return new Constant(a + b);
+        case 2:
+          return new Constant(a * b);
+        case 7:
+          return new Constant(a < b ? 1 : 0);
+        default:
+          return new Constant(a == b ? 1 : 0);
+      }
+    }
+
+    switch (opCode) {
+      case 1:
+        return new Sum(first, second);
+      case 2:
+        return new Product(first, second);
+      default:
+        return null; // Comparisons on variables aren't supported
+    }
+  }
+
+  private Expression readParameter(long instruction, int index) {
+    switch (getMode(instruction, index)) {
+      case 0: // Position mode
+        return readAddress(readMemory(instructionPointer + index + 1));
+      case 1: // Immediate mode
+        return readMemory(instructionPointer + index + 1);
+      default: // Relative mode
+        return readAddress(offset(readMemory(instructionPointer + index + 1)));
+    }
+  }
+
+  private Expression readAddress(Expression address) {
+    if (address instanceof Constant) {
+      return readMemory(((Constant) address).value);
+    }
+    return new Load(address);
+  }
+
+  private boolean writeParameter(long instruction, int index, Expression value) {
+    Expression address = readMemory(instructionPointer + index + 1);
+    switch (getMode(instruction, index)) {
+      case 0: // Position mode
+        break;
+      case 2: // Relative mode
+        address = offset(address);
+        break;
+      default:
+        return false;
+    }
+    if (!(address instanceof Constant)) {
+      return false;
+    }
+    memory.put(((Constant) address).value, value);
+    return true;
+  }
+
+  private Expression offset(Expression address) {
+    return address instanceof Constant
+        ? new Constant(relativeBase + ((Constant) address).value)
+        : new Sum(new Constant(relativeBase), address);
+  }
+
+  private static int getMode(long instruction, int index) {
+    long modes = instruction / 100;
+    for (int i = 0; i < index; i++) {
+      modes /= 10;
+    }
+    return (int) (modes % 10);
+  }
+
+  /** A node in an expression tree. */
+  public abstract static class Expression {
+    /**
+     * Simplifies this expression into a polynomial, or returns nothing if it contains a {@link
+     * Load} (whose value can't be expressed that way).
+     */
+    public abstract Optional<Polynomial> toPolynomial();
+  }
+
+  public static class Constant extends Expression {
+    public final long value;
+
+    Constant(long value) {
+      this.value = value;
+    }
+
+    @Override
+    public Optional<Polynomial> toPolynomial() {
+      return Optional.of(Polynomial.constant(value));
+    }
+
+    @Override
+    public String toString() {
+      return Long.toString(value);
+    }
+  }
+
+  public static class Variable extends Expression {
+    public final String name;
+
+    Variable(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public Optional<Polynomial> toPolynomial() {
+      return Optional.of(Polynomial.variable(name));
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+
+  public static class Sum extends Expression {
+    public final Expression left;
+    public final Expression right;
+
+    Sum(Expression left, Expression right) {
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    public Optional<Polynomial> toPolynomial() {
+      return left.toPolynomial().flatMap(l -> right.toPolynomial().map(l::plus));
+    }
+
+    @Override
+    public String toString() {
+      return "(" + left + " + " + right + ")";
+    }
+  }
+
+  public static class Product extends Expression {
+    public final Expression left;
+    public final Expression right;
+
+    Product(Expression left, Expression right) {
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    public Optional<Polynomial> toPolynomial() {
+      return left.toPolynomial().flatMap(l -> right.toPolynomial().map(l::times));
+    }
+
+    @Override
+    public String toString() {
+      return left + " * " + right;
+    }
+  }
+
+  /** The contents of a memory address which depends on a variable. */
+  public static class Load extends Expression {
+    public final Expression address;
+
+    Load(Expression address) {
+      this.address = address;
+    }
+
+    @Override
+    public Optional<Polynomial> toPolynomial() {
+      return Optional.empty();
+    }
+
+    @Override
+    public String toString() {
+      return "[" + address + "]";
+    }
+  }
+
+  /**
+   * A sum of terms, each a coefficient times a product of variables. Arithmetic wraps around
+   * exactly like it does in a {@link ShipComputer}.
+   */
+  public static class Polynomial {
+    // Each term is keyed by the sorted list of variables multiplied together (with repeats)
+    private final Map<List<String>, Long> terms;
+
+    private Polynomial(Map<List<String>, Long> terms) {
+      this.terms = terms;
+    }
+
+    static Polynomial constant(long value) {
+      Map<List<String>, Long> terms = new HashMap<>();
+      if (value != 0) {
+        terms.put(Collections.emptyList(), value);
+      }
+      return new Polynomial(terms);
+    }
+
+    static Polynomial variable(String name) {
+      Map<List<String>, Long> terms = new HashMap<>();
+      terms.put(Collections.singletonList(name), 1L);
+      return new Polynomial(terms);
+    }
+
+    public Polynomial plus(Polynomial other) {
+      Map<List<String>, Long> sum = new HashMap<>(terms);
+      other.terms.forEach((monomial, coefficient) -> sum.merge(monomial, coefficient, Long::sum));
+      sum.values().removeIf(c -> c == 0);
+      return new Polynomial(sum);
+    }
+
+    public Polynomial times(Polynomial other) {
+      Map<List<String>, Long> product = new HashMap<>();
+      terms.forEach(
+          (m1, c1) ->
+              other.terms.forEach(
+                  (m2, c2) -> {
+                    List<String> monomial = new ArrayList<>(m1);
+                    monomial.addAll(m2);
+                    Collections.sort(monomial);
+                    product.merge(monomial, c1 * c2, Long::sum);
+                  }));
+      product.values().removeIf(c -> c == 0);
+      return new Polynomial(product);
+    }
+
+    /** Returns this polynomial with the given variable replaced by a constant. */
+    public Polynomial substitute(String name, long value) {
+      Map<List<String>, Long> substituted = new HashMap<>();
+      terms.forEach(
+          (monomial, coefficient) -> {
+            List<String> remaining = new ArrayList<>(monomial);
+            while (remaining.remove(name)) {
+              coefficient *= value;
+            }
+            substituted.merge(remaining, coefficient, Long::sum);
+          });
+      substituted.values().removeIf(c -> c == 0);
+      return new Polynomial(substituted);
+    }
+
+    /**
+     * Returns the coefficient of each power of the given variable (index 0 being the constant
+     * term), or nothing if any other variable is still present.
+     */
+    public Optional<long[]> coefficients(String name) {
+      int degree = terms.keySet().stream().mapToInt(List::size).max().orElse(0);
+      long[] coefficients = new long[degree + 1];
+      for (Map.Entry<List<String>, Long> term : terms.entrySet()) {
+        for (String variable : term.getKey()) {
+          if (!variable.equals(name)) {
+            return Optional.empty();
+          }
+        }
+        coefficients[term.getKey().size()] += term.getValue();
+      }
+      return Optional.of(coefficients);
+    }
+
+    @Override
+    public String toString() {
+      if (terms.isEmpty()) {
+        return "0";
+      }
+      StringBuilder builder = new StringBuilder();
+      terms.forEach(
+          (monomial, coefficient) -> {
+            if (builder.length() > 0) {
+              builder.append(" + ");
+            }
+            builder.append(coefficient);
+            for (String variable : monomial) {
+              builder.append('*').append(variable);
+            }
+          });
+      return builder.toString();
+    }
+  }
+}